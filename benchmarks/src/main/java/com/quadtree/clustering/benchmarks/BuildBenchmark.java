@@ -0,0 +1,51 @@
+package com.quadtree.clustering.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.quadtree.clustering.FlatQuadTree;
+import com.quadtree.clustering.IGeoPoint;
+import com.quadtree.clustering.QTNode;
+
+/**
+ * Bulk construction of a whole tree
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BuildBenchmark {
+    @Param({ "UNIFORM", "CLUSTERED", "COLOCATED" })
+    public Datasets dataset;
+
+    @Param({ "100000", "1000000" })
+    public int size;
+
+    private List<IGeoPoint> points;
+
+    @Setup
+    public void setUp() {
+        points = dataset.generate(size);
+    }
+
+    @Benchmark
+    public QTNode build() {
+        return new QTNode(points);
+    }
+
+    @Benchmark
+    public QTNode buildParallel() {
+        return new QTNode(points, QTNode.WHOLE_WORLD, QTNode.DEFAULT_POINTS_COUNT_THRESHOLD, null,
+                QTNode.DEFAULT_SEQUENTIAL_CUTOFF);
+    }
+
+    @Benchmark
+    public FlatQuadTree buildFlat() {
+        return new FlatQuadTree(points, QTNode.WHOLE_WORLD, QTNode.DEFAULT_POINTS_COUNT_THRESHOLD);
+    }
+}
@@ -0,0 +1,121 @@
+package com.quadtree.clustering.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.quadtree.clustering.GeoPointInternal;
+import com.quadtree.clustering.GeoRect;
+import com.quadtree.clustering.IGeoPoint;
+
+/**
+ * Deterministic point sets for benchmarks
+ *
+ */
+public enum Datasets {
+    /**
+     * Points spread uniformly over the whole world
+     */
+    UNIFORM {
+        @Override
+        IGeoPoint next(Random random) {
+            return new GeoPointInternal(random.nextInt(360000001) - 180000000, random.nextInt(180000001) - 90000000);
+        }
+    },
+
+    /**
+     * Points around a few dozen city centres, as real POI data
+     */
+    CLUSTERED {
+        @Override
+        IGeoPoint next(Random random) {
+            int[] city = CITIES[random.nextInt(CITIES.length)];
+            return new GeoPointInternal(clampLng(city[0] + (int) (random.nextGaussian() * CITY_RADIUS)),
+                    clampLat(city[1] + (int) (random.nextGaussian() * CITY_RADIUS)));
+        }
+    },
+
+    /**
+     * Half of the points share a handful of exact locations (malls, apartment buildings), the rest is clustered
+     */
+    COLOCATED {
+        @Override
+        IGeoPoint next(Random random) {
+            if (random.nextBoolean()) {
+                int[] city = CITIES[random.nextInt(COLOCATED_SPOTS)];
+                return new GeoPointInternal(city[0], city[1]);
+            }
+            return CLUSTERED.next(random);
+        }
+    };
+
+    private static final long SEED = 42;
+    private static final int CITY_RADIUS = 100000;
+    private static final int COLOCATED_SPOTS = 10;
+
+    /**
+     * Longitude and latitude of city centres
+     */
+    private static final int[][] CITIES = {
+            { 37617300, 55755800 }, { -73935200, 40730600 }, { 139691700, 35689500 }, { -127600, 51507400 },
+            { 2352200, 48856600 }, { -118243700, 34052200 }, { 116407400, 39904200 }, { 77209000, 28613900 },
+            { -46633300, -23550500 }, { 151209300, -33868800 }, { 28978400, 41008200 }, { 31235700, 30044400 },
+            { -99133200, 19432600 }, { 103819800, 1352100 }, { 13405000, 52520000 }, { -58381600, -34603700 },
+            { 174763300, -36848500 }, { -179000000, -16500000 }, { 30523400, 50450100 }, { 30335100, 59934300 },
+            { 18068600, 59329300 }, { -3703800, 40416800 }, { 12496400, 41902800 }, { 72877700, 19076000 },
+            { 121473700, 31230400 }, { 126978000, 37566500 }, { -87629800, 41878100 }, { -122419400, 37774900 },
+            { 18424100, -33924900 }, { 36821900, -1292100 }, { 55270800, 25204800 }, { 100501800, 13756300 } };
+
+    abstract IGeoPoint next(Random random);
+
+    /**
+     * @return same points for the same dataset and size
+     */
+    public List<IGeoPoint> generate(int size) {
+        Random random = new Random(SEED + ordinal());
+        List<IGeoPoint> points = new ArrayList<IGeoPoint>(size);
+        for (int i = 0; i < size; i++) {
+            points.add(next(random));
+        }
+        return points;
+    }
+
+    /**
+     * @return viewports of given span centred at random points of given set, spans of the whole world range cover
+     *         all of it
+     */
+    public static GeoRect[] viewports(List<IGeoPoint> points, int lngSpan, int latSpan, int count) {
+        Random random = new Random(SEED);
+        GeoRect[] res = new GeoRect[count];
+        for (int i = 0; i < count; i++) {
+            IGeoPoint c = points.get(random.nextInt(points.size()));
+            int bottom = latSpan >= 180000000 ? -90000000 : clampLat(c.getLat() - latSpan / 2);
+            int top = latSpan >= 180000000 ? 90000000 : clampLat(c.getLat() + latSpan / 2);
+            if (lngSpan >= 360000000) {
+                // both edges would wrap to the same meridian
+                res[i] = new GeoRect(-180000000, bottom, 180000000, top);
+            } else {
+                res[i] = new GeoRect(wrapLng(c.getLng() - lngSpan / 2), bottom, wrapLng(c.getLng() + lngSpan / 2),
+                        top);
+            }
+        }
+        return res;
+    }
+
+    private static int clampLng(int lng) {
+        return Math.max(-180000000, Math.min(180000000, lng));
+    }
+
+    private static int clampLat(int lat) {
+        return Math.max(-90000000, Math.min(90000000, lat));
+    }
+
+    private static int wrapLng(int lng) {
+        if (lng > 180000000) {
+            return lng - 360000000;
+        } else if (lng < -180000000) {
+            return lng + 360000000;
+        }
+        return lng;
+    }
+}
@@ -0,0 +1,80 @@
+package com.quadtree.clustering.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.quadtree.clustering.IGeoPoint;
+import com.quadtree.clustering.PersistentQTNode;
+import com.quadtree.clustering.QTNode;
+import com.quadtree.clustering.WriteBuffer;
+
+/**
+ * Single point inserts into a populated tree
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InsertBenchmark {
+    private static final int INSERTED_POINTS = 1000000;
+
+    @Param({ "UNIFORM", "CLUSTERED", "COLOCATED" })
+    public Datasets dataset;
+
+    @Param({ "100000", "1000000" })
+    public int size;
+
+    private List<IGeoPoint> initial;
+    private IGeoPoint[] inserted;
+
+    private QTNode tree;
+    private PersistentQTNode persistent;
+    private WriteBuffer buffer;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        List<IGeoPoint> all = dataset.generate(size + INSERTED_POINTS);
+        initial = all.subList(0, size);
+        inserted = all.subList(size, all.size()).toArray(new IGeoPoint[INSERTED_POINTS]);
+    }
+
+    @Setup(Level.Iteration)
+    public void buildTree() {
+        tree = new QTNode(initial);
+        persistent = new PersistentQTNode(initial, QTNode.WHOLE_WORLD, QTNode.DEFAULT_POINTS_COUNT_THRESHOLD);
+        buffer = new WriteBuffer(new QTNode(initial));
+        next = 0;
+    }
+
+    @Benchmark
+    public void insert() {
+        tree.insert(inserted[next]);
+        if (++next == inserted.length) {
+            // tree keeps growing until the end of iteration, start over with the same points
+            next = 0;
+        }
+    }
+
+    @Benchmark
+    public PersistentQTNode insertPersistent() {
+        persistent = persistent.insert(inserted[next]);
+        if (++next == inserted.length) {
+            next = 0;
+        }
+        return persistent;
+    }
+
+    @Benchmark
+    public void insertBuffered() {
+        buffer.insert(inserted[next]);
+        if (++next == inserted.length) {
+            next = 0;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.quadtree.clustering.benchmarks;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.quadtree.clustering.IGeoPoint;
+import com.quadtree.clustering.QTNode;
+
+/**
+ * Nearest points lookups around existing points
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NearestBenchmark {
+    private static final int LOCATIONS_COUNT = 1024;
+
+    @Param({ "UNIFORM", "CLUSTERED", "COLOCATED" })
+    public Datasets dataset;
+
+    @Param({ "1000000" })
+    public int size;
+
+    @Param({ "10", "100" })
+    public int count;
+
+    private QTNode tree;
+    private IGeoPoint[] locations;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        List<IGeoPoint> points = dataset.generate(size);
+        tree = new QTNode(points);
+        locations = Datasets.UNIFORM.generate(LOCATIONS_COUNT).toArray(new IGeoPoint[LOCATIONS_COUNT]);
+        for (int i = 0; i < LOCATIONS_COUNT; i += 2) {
+            locations[i] = points.get(i * (size / LOCATIONS_COUNT));
+        }
+    }
+
+    private IGeoPoint nextLocation() {
+        next = (next + 1) & (LOCATIONS_COUNT - 1);
+        return locations[next];
+    }
+
+    @Benchmark
+    public Collection<IGeoPoint> getNearestPoints() {
+        return tree.getNearestPoints(count, nextLocation());
+    }
+
+    @Benchmark
+    public List<IGeoPoint> nearest() {
+        IGeoPoint where = nextLocation();
+        return tree.nearest(count, where.getLat(), where.getLng());
+    }
+}
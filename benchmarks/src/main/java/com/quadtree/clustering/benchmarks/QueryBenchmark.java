@@ -0,0 +1,123 @@
+package com.quadtree.clustering.benchmarks;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.quadtree.clustering.*;
+
+/**
+ * Viewport queries of different sizes
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+    private static final int VIEWPORTS_COUNT = 1024;
+    private static final int WIDTH_PX = 1024;
+    private static final int HEIGHT_PX = 768;
+
+    @Param({ "UNIFORM", "CLUSTERED", "COLOCATED" })
+    public Datasets dataset;
+
+    @Param({ "1000000" })
+    public int size;
+
+    /**
+     * Viewport longitude span in microdegrees, from a city block to the whole world
+     */
+    @Param({ "20000", "500000", "10000000", "120000000", "360000000" })
+    public int viewportSpan;
+
+    private QTNode tree;
+    private QTNode fitted;
+    private QTNode compressed;
+    private FlatQuadTree flat;
+    private GeoRect[] viewports;
+    private int[] zooms;
+    private int next;
+
+    @State(Scope.Thread)
+    public static class Context {
+        final QueryContext context = new QueryContext();
+        IClusterVisitor visitor;
+
+        @Setup
+        public void setUp(final Blackhole blackhole) {
+            visitor = new IClusterVisitor() {
+                @Override
+                public void visitPoint(IGeoPoint p) {
+                    blackhole.consume(p);
+                }
+
+                @Override
+                public void visitCluster(GeoCluster cluster) {
+                    blackhole.consume(cluster);
+                }
+            };
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        List<IGeoPoint> points = dataset.generate(size);
+        tree = new QTNode(points);
+        fitted = new QTNode(points, QTNode.getAlignedBounds(points), QTNode.DEFAULT_POINTS_COUNT_THRESHOLD);
+        compressed = new QTNode(points, QTNode.WHOLE_WORLD, QTNode.DEFAULT_POINTS_COUNT_THRESHOLD, true);
+        flat = new FlatQuadTree(points, QTNode.WHOLE_WORLD, QTNode.DEFAULT_POINTS_COUNT_THRESHOLD);
+        viewports = Datasets.viewports(points, viewportSpan, Math.min(viewportSpan * HEIGHT_PX / WIDTH_PX, 180000000),
+                VIEWPORTS_COUNT);
+        zooms = new int[VIEWPORTS_COUNT];
+        for (int i = 0; i < VIEWPORTS_COUNT; i++) {
+            zooms[i] = tree.getZoom(viewports[i], WIDTH_PX, HEIGHT_PX, QTNode.DEFAULT_CLUSTER_CELL_PX);
+        }
+    }
+
+    private int nextViewport() {
+        next = (next + 1) & (VIEWPORTS_COUNT - 1);
+        return next;
+    }
+
+    @Benchmark
+    public Collection<? extends IGeoPoint> query() {
+        return tree.query(viewports[nextViewport()]);
+    }
+
+    @Benchmark
+    public Collection<? extends IGeoPoint> queryFitted() {
+        return fitted.query(viewports[nextViewport()]);
+    }
+
+    @Benchmark
+    public Collection<? extends IGeoPoint> queryCompressed() {
+        return compressed.query(viewports[nextViewport()]);
+    }
+
+    @Benchmark
+    public Collection<? extends IGeoPoint> queryFlat() {
+        return flat.query(viewports[nextViewport()]);
+    }
+
+    @Benchmark
+    public Collection<? extends IGeoPoint> queryZoom() {
+        int i = nextViewport();
+        return tree.query(viewports[i], zooms[i]);
+    }
+
+    @Benchmark
+    public void queryVisitor(Context context) {
+        tree.query(viewports[nextViewport()], context.context, context.visitor);
+    }
+
+    @Benchmark
+    public int count() {
+        return tree.count(viewports[nextViewport()]);
+    }
+}
@@ -0,0 +1,259 @@
+package com.quadtree.clustering;
+
+import java.util.*;
+
+/**
+ * Size-bounded LRU cache of clustered map tiles on top of a {@link QTNode}.
+ * <p>
+ * Tile <code>(zoom, x, y)</code> is the node cell reached from the tree root by <code>zoom</code> splits, x grows to
+ * the east and y to the south. Its content is the subtree of that cell clustered <code>clusterDepth</code> levels
+ * below the tile, as {@link QTNode#query(GeoRect, int)} would report it. Points and clusters of the neighbouring
+ * cells touching the tile border are not included, so every point of the tree shows up in exactly one tile of a zoom
+ * level and tiles can be stitched without duplicates.
+ * <p>
+ * Tree must be modified through this cache only. Every modification invalidates exactly the tiles whose result can
+ * change: tiles within the node of the modified point on the cluster level, or within the leaf holding it if the leaf
+ * is shallower (a split or a merge of a leaf also changes everything inside the leaf).
+ *
+ */
+public class ClusterCache {
+    public static final int DEFAULT_MAX_TILES = 1024;
+    public static final int DEFAULT_CLUSTER_DEPTH = 2;
+
+    private static final int MAX_ZOOM = 28;
+
+    private final QTNode tree;
+    private final int clusterDepth;
+    private final QueryContext context = new QueryContext();
+
+    private final LinkedHashMap<Long, Tile> tiles;
+    private final int[] tilesPerZoom = new int[MAX_ZOOM + 1];
+
+    private static class Tile {
+        final int zoom, x, y;
+        final List<IGeoPoint> content;
+
+        Tile(int zoom, int x, int y, List<IGeoPoint> content) {
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+            this.content = content;
+        }
+    }
+
+    /**
+     * @param tree
+     *            tree to cache tiles of
+     */
+    public ClusterCache(QTNode tree) {
+        this(tree, DEFAULT_MAX_TILES, DEFAULT_CLUSTER_DEPTH);
+    }
+
+    /**
+     * @param tree
+     *            tree to cache tiles of
+     * @param maxTiles
+     *            maximum number of cached tiles, least recently used tiles are evicted first
+     * @param clusterDepth
+     *            depth of clusters below the tile, e.g. 2 for 64 pixel clusters on 256 pixel tiles
+     */
+    public ClusterCache(QTNode tree, final int maxTiles, int clusterDepth) {
+        this.tree = tree;
+        this.clusterDepth = clusterDepth;
+        tiles = new LinkedHashMap<Long, Tile>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+                if (size() > maxTiles) {
+                    tilesPerZoom[eldest.getValue().zoom]--;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param zoom
+     *            tile zoom level
+     * @param x
+     *            tile column, from west to east
+     * @param y
+     *            tile row, from north to south
+     * @return points and {@link GeoCluster}s of the tile, the list must not be modified
+     */
+    public synchronized List<IGeoPoint> getTile(int zoom, int x, int y) {
+        if (zoom < 0 || zoom > MAX_ZOOM || x < 0 || y < 0 || x >= 1 << zoom || y >= 1 << zoom) {
+            throw new IllegalArgumentException("Illegal tile " + zoom + "/" + x + "/" + y);
+        }
+
+        Long key = key(zoom, x, y);
+        Tile tile = tiles.get(key);
+        if (tile == null) {
+            final List<IGeoPoint> content = new ArrayList<IGeoPoint>();
+            tree.queryCell(getTileId(zoom, x, y), clusterDepth, context, new IClusterVisitor() {
+                @Override
+                public void visitPoint(IGeoPoint p) {
+                    content.add(p);
+                }
+
+                @Override
+                public void visitCluster(GeoCluster cluster) {
+                    content.add(cluster);
+                }
+            });
+
+            tile = new Tile(zoom, x, y, Collections.unmodifiableList(content));
+            tilesPerZoom[zoom]++;
+            tiles.put(key, tile);
+        }
+        return tile.content;
+    }
+
+    /**
+     * @return bounds of given tile
+     */
+    public GeoRect getTileRect(int zoom, int x, int y) {
+        GeoRect root = tree.getBoundBox();
+        int l = root.bLx, b = root.bLy, r = root.tRx, t = root.tRy;
+        for (int i = zoom - 1; i >= 0; i--) {
+            int cX = (r + l) / 2;
+            int cY = (t + b) / 2;
+            if ((x >> i & 1) == 0) {
+                r = cX;
+            } else {
+                l = cX;
+            }
+            if ((y >> i & 1) == 0) {
+                b = cY;
+            } else {
+                t = cY;
+            }
+        }
+        return new GeoRect(l, b, r, t);
+    }
+
+    /**
+     * @return path ID of the node cell of given tile, see {@link GeoCluster#getId()}
+     */
+    private static long getTileId(int zoom, int x, int y) {
+        long id = QTNode.ROOT_ID;
+        for (int i = zoom - 1; i >= 0; i--) {
+            boolean east = (x >> i & 1) != 0;
+            boolean south = (y >> i & 1) != 0;
+            id = id << 2 | (south ? (east ? 2 : 3) : (east ? 1 : 0));
+        }
+        return id;
+    }
+
+    public synchronized void insert(IGeoPoint p) {
+        int depth = tree.getLeafDepth(p.getLng(), p.getLat());
+        tree.insert(p);
+        invalidate(p.getLng(), p.getLat(), Math.min(depth, tree.getLeafDepth(p.getLng(), p.getLat())));
+    }
+
+    public synchronized boolean remove(IGeoPoint p) {
+        int depth = tree.getLeafDepth(p.getLng(), p.getLat());
+        if (!tree.remove(p)) {
+            return false;
+        }
+        invalidate(p.getLng(), p.getLat(), Math.min(depth, tree.getLeafDepth(p.getLng(), p.getLat())));
+        return true;
+    }
+
+    /**
+     * @see QTNode#move(IGeoPoint, int, int)
+     */
+    public synchronized boolean move(IGeoPoint p, int newLat, int newLng) {
+        int oldLng = p.getLng(), oldLat = p.getLat();
+        int oldDepth = tree.getLeafDepth(oldLng, oldLat);
+        int newDepth = tree.getLeafDepth(newLng, newLat);
+        if (!tree.move(p, newLat, newLng)) {
+            return false;
+        }
+        invalidate(oldLng, oldLat, Math.min(oldDepth, tree.getLeafDepth(oldLng, oldLat)));
+        invalidate(newLng, newLat, Math.min(newDepth, tree.getLeafDepth(newLng, newLat)));
+        return true;
+    }
+
+    public synchronized void clear() {
+        tiles.clear();
+        Arrays.fill(tilesPerZoom, 0);
+    }
+
+    /**
+     * Drops tiles affected by a change at given location
+     *
+     * @param leafDepth
+     *            depth of the shallowest leaf holding the location before or after the change
+     */
+    private void invalidate(int lng, int lat, int leafDepth) {
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            if (tilesPerZoom[zoom] == 0) {
+                continue;
+            }
+
+            // changed node, whose representation is cached in tiles of this zoom
+            int depth = Math.min(zoom + clusterDepth, leafDepth);
+            int cellX = 0, cellY = 0;
+            GeoRect root = tree.getBoundBox();
+            int l = root.bLx, b = root.bLy, r = root.tRx, t = root.tRy;
+            for (int i = 0; i < depth; i++) {
+                int cX = (r + l) / 2;
+                int cY = (t + b) / 2;
+                int q = QTNode.quadrantOf(lng, lat, cX, cY);
+                boolean east = q == 1 || q == 2;
+                boolean south = q == 2 || q == 3;
+                cellX = cellX << 1 | (east ? 1 : 0);
+                cellY = cellY << 1 | (south ? 1 : 0);
+                if (east) {
+                    l = cX;
+                } else {
+                    r = cX;
+                }
+                if (south) {
+                    t = cY;
+                } else {
+                    b = cY;
+                }
+            }
+
+            // tiles within the changed cell, or the one containing it
+            int fromX, fromY, size;
+            if (depth >= zoom) {
+                fromX = cellX >> (depth - zoom);
+                fromY = cellY >> (depth - zoom);
+                size = 1;
+            } else {
+                fromX = cellX << (zoom - depth);
+                fromY = cellY << (zoom - depth);
+                size = 1 << (zoom - depth);
+            }
+
+            if ((long) size * size <= tilesPerZoom[zoom]) {
+                for (int x = fromX; x < fromX + size; x++) {
+                    for (int y = fromY; y < fromY + size; y++) {
+                        // removal does not touch the access order of other tiles
+                        if (tiles.remove(key(zoom, x, y)) != null) {
+                            tilesPerZoom[zoom]--;
+                        }
+                    }
+                }
+            } else {
+                for (Iterator<Tile> it = tiles.values().iterator(); it.hasNext();) {
+                    Tile tile = it.next();
+                    if (tile.zoom == zoom && tile.x >= fromX && tile.x < fromX + size && tile.y >= fromY
+                            && tile.y < fromY + size) {
+                        it.remove();
+                        tilesPerZoom[zoom]--;
+                    }
+                }
+            }
+        }
+    }
+
+    private static long key(int zoom, int x, int y) {
+        return (long) zoom << 58 | (long) x << 29 | y;
+    }
+}
@@ -0,0 +1,25 @@
+package com.quadtree.clustering;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+
+/**
+ * Points of a cluster enumerated lazily from the tree holding them. Iteration can start at any position without
+ * walking the points before it: whole subtrees are skipped by their counts, so a page of a huge cluster costs the tree
+ * depth plus the page size.
+ *
+ */
+abstract class ClusterMembers extends AbstractCollection<IGeoPoint> {
+
+    /**
+     * @param offset
+     *            position of the first returned point, an offset past the last point gives an empty iterator
+     * @return read-only iterator over the points starting at given position
+     */
+    abstract Iterator<IGeoPoint> iterator(int offset);
+
+    @Override
+    public Iterator<IGeoPoint> iterator() {
+        return iterator(0);
+    }
+}
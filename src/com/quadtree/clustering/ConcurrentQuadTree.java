@@ -0,0 +1,114 @@
+package com.quadtree.clustering;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Quad-tree for many reader threads alongside writers. Versions of the tree are {@link PersistentQTNode}s published
+ * through an atomic reference: a modification builds a new root sharing untouched subtrees with the current one and
+ * swaps it in, readers never lock and always see a complete snapshot.
+ * <p>
+ * Concurrent writers do not corrupt the tree, but a writer losing the race repeats its path copy, so a single writer
+ * is the intended use.
+ *
+ */
+public class ConcurrentQuadTree implements IQuadTree {
+    private final AtomicReference<PersistentQTNode> root;
+
+    /**
+     * @param boundingBox
+     *            bounding box of the root node
+     * @param maxPoints
+     *            maximum number of points in a leaf-node
+     */
+    public ConcurrentQuadTree(GeoRect boundingBox, int maxPoints) {
+        root = new AtomicReference<PersistentQTNode>(new PersistentQTNode(boundingBox, maxPoints));
+    }
+
+    /**
+     * @param pts
+     *            initial points
+     * @param boundingBox
+     *            bounding box of the root node
+     * @param maxPoints
+     *            maximum number of points in a leaf-node
+     */
+    public ConcurrentQuadTree(Collection<? extends IGeoPoint> pts, GeoRect boundingBox, int maxPoints) {
+        root = new AtomicReference<PersistentQTNode>(new PersistentQTNode(pts, boundingBox, maxPoints));
+    }
+
+    /**
+     * @return current version of the tree, not affected by further modifications
+     */
+    public PersistentQTNode snapshot() {
+        return root.get();
+    }
+
+    public void insert(IGeoPoint p) {
+        PersistentQTNode current, next;
+        do {
+            current = root.get();
+            next = current.insert(p);
+        } while (!root.compareAndSet(current, next));
+    }
+
+    /**
+     * Inserts given points, readers see either none or all of them
+     */
+    public void insertAll(Collection<? extends IGeoPoint> points) {
+        PersistentQTNode current, next;
+        do {
+            current = root.get();
+            next = current;
+            for (IGeoPoint p : points) {
+                next = next.insert(p);
+            }
+        } while (!root.compareAndSet(current, next));
+    }
+
+    /**
+     * @return <code>true</code> if the point was found and removed
+     */
+    public boolean remove(IGeoPoint p) {
+        PersistentQTNode current, next;
+        do {
+            current = root.get();
+            next = current.remove(p);
+            if (next == current) {
+                return false;
+            }
+        } while (!root.compareAndSet(current, next));
+        return true;
+    }
+
+    @Override
+    public Collection<? extends IGeoPoint> query(GeoRect range) {
+        return root.get().query(range);
+    }
+
+    @Override
+    public int count(GeoRect range) {
+        return root.get().count(range);
+    }
+
+    @Override
+    public void aggregate(GeoRect range, IAggregateVisitor visitor) {
+        root.get().aggregate(range, visitor);
+    }
+
+    @Override
+    public Collection<IGeoPoint> getNearestPoints(int atLeast, IGeoPoint where) {
+        return root.get().getNearestPoints(atLeast, where);
+    }
+
+    @Override
+    public List<IGeoPoint> nearest(int k, int lat, int lng) {
+        return root.get().nearest(k, lat, lng);
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentQuadTree[" + root.get() + "]";
+    }
+}
@@ -0,0 +1,395 @@
+package com.quadtree.clustering;
+
+import java.util.*;
+
+/**
+ * Points of a leaf grouped by coordinates. Every distinct coordinate is stored once along with its points, so a pile
+ * of co-located points (a building, a mall) costs one entry in queries: it is reported as a single {@link GeoCluster}
+ * weighted by the number of points, which are enumerated lazily through a view instead of being copied.
+ * <p>
+ * Entries keep the order their coordinates first appeared in, points of an entry keep insertion order. Coordinates are
+ * the ones given on insertion, not the ones points report later.
+ *
+ */
+final class CoordinateMultiset extends AbstractCollection<IGeoPoint> {
+    private static final int INITIAL_CAPACITY = 4;
+    /**
+     * Number of entries from which a coordinate index is maintained instead of scanning entries
+     */
+    private static final int INDEX_THRESHOLD = 16;
+
+    private int[] lngs = new int[INITIAL_CAPACITY];
+    private int[] lats = new int[INITIAL_CAPACITY];
+    /**
+     * {@link IGeoPoint} for a single point, {@link Group} for co-located ones
+     */
+    private Object[] payloads = new Object[INITIAL_CAPACITY];
+    private int entries;
+    private int size;
+
+    private Map<Long, Integer> index;
+
+    /**
+     * Co-located points with their weighted representation, dropped whenever the points change
+     */
+    private static final class Group {
+        List<IGeoPoint> points = new ArrayList<IGeoPoint>();
+        GeoCluster cluster;
+
+        /**
+         * @return points to be modified. A reported cluster keeps viewing the current list, so it is copied first.
+         */
+        List<IGeoPoint> modify() {
+            if (cluster != null) {
+                points = new ArrayList<IGeoPoint>(points);
+                cluster = null;
+            }
+            return points;
+        }
+    }
+
+    CoordinateMultiset() {
+    }
+
+    CoordinateMultiset(Collection<? extends IGeoPoint> pts) {
+        addAll(pts);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of distinct coordinates
+     */
+    int entriesCount() {
+        return entries;
+    }
+
+    int getLng(int entry) {
+        return lngs[entry];
+    }
+
+    int getLat(int entry) {
+        return lats[entry];
+    }
+
+    /**
+     * @return number of points at the coordinates of given entry
+     */
+    int getCount(int entry) {
+        Object payload = payloads[entry];
+        return payload instanceof Group ? ((Group) payload).points.size() : 1;
+    }
+
+    /**
+     * @return point of given entry at given position
+     */
+    IGeoPoint getPoint(int entry, int i) {
+        Object payload = payloads[entry];
+        return payload instanceof Group ? ((Group) payload).points.get(i) : (IGeoPoint) payload;
+    }
+
+    /**
+     * Adds point at the coordinates it reports
+     */
+    @Override
+    public boolean add(IGeoPoint p) {
+        add(p, p.getLng(), p.getLat());
+        return true;
+    }
+
+    /**
+     * Adds point at given coordinates
+     */
+    void add(IGeoPoint p, int lng, int lat) {
+        int entry = find(lng, lat);
+        if (entry < 0) {
+            entry = entries++;
+            if (entry == payloads.length) {
+                lngs = Arrays.copyOf(lngs, entry * 2);
+                lats = Arrays.copyOf(lats, entry * 2);
+                payloads = Arrays.copyOf(payloads, entry * 2);
+            }
+            lngs[entry] = lng;
+            lats[entry] = lat;
+            payloads[entry] = p;
+            if (index != null) {
+                index.put(key(lng, lat), entry);
+            } else if (entries > INDEX_THRESHOLD) {
+                buildIndex();
+            }
+        } else if (payloads[entry] instanceof Group) {
+            ((Group) payloads[entry]).modify().add(p);
+        } else {
+            Group group = new Group();
+            group.points.add((IGeoPoint) payloads[entry]);
+            group.points.add(p);
+            payloads[entry] = group;
+        }
+        size++;
+    }
+
+    /**
+     * Adds all points of given multiset at their stored coordinates
+     */
+    void addAll(CoordinateMultiset other) {
+        for (int entry = 0; entry < other.entries; entry++) {
+            for (int i = 0; i < other.getCount(entry); i++) {
+                add(other.getPoint(entry, i), other.lngs[entry], other.lats[entry]);
+            }
+        }
+    }
+
+    /**
+     * Removes one occurrence of given point (as defined by {@link Object#equals(Object)}) stored at given
+     * coordinates
+     *
+     * @return <code>true</code> if the point was found
+     */
+    boolean remove(IGeoPoint p, int lng, int lat) {
+        int entry = find(lng, lat);
+        if (entry < 0) {
+            return false;
+        }
+
+        Object payload = payloads[entry];
+        if (payload instanceof Group) {
+            int index = ((Group) payload).points.indexOf(p);
+            if (index < 0) {
+                return false;
+            }
+            List<IGeoPoint> points = ((Group) payload).modify();
+            points.remove(index);
+            size--;
+            if (points.size() == 1) {
+                payloads[entry] = points.get(0);
+            }
+            if (!points.isEmpty()) {
+                return true;
+            }
+        } else if (p.equals(payload)) {
+            size--;
+        } else {
+            return false;
+        }
+
+        // keep entries order, shifting the tail
+        System.arraycopy(lngs, entry + 1, lngs, entry, entries - entry - 1);
+        System.arraycopy(lats, entry + 1, lats, entry, entries - entry - 1);
+        System.arraycopy(payloads, entry + 1, payloads, entry, entries - entry - 1);
+        payloads[--entries] = null;
+        if (index != null) {
+            if (entries > INDEX_THRESHOLD) {
+                buildIndex();
+            } else {
+                index = null;
+            }
+        }
+        return true;
+    }
+
+    private int find(int lng, int lat) {
+        if (index != null) {
+            Integer entry = index.get(key(lng, lat));
+            return entry == null ? -1 : entry;
+        }
+        for (int entry = 0; entry < entries; entry++) {
+            if (lngs[entry] == lng && lats[entry] == lat) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private void buildIndex() {
+        index = new HashMap<Long, Integer>(entries * 2);
+        for (int entry = 0; entry < entries; entry++) {
+            index.put(key(lngs[entry], lats[entry]), entry);
+        }
+    }
+
+    private static long key(int lng, int lat) {
+        return (long) lng << 32 | lat & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Passes every entry to the visitor, a single point as is and co-located points as one weighted cluster
+     *
+     * @param cell
+     *            bounds of a tree cell holding the points, cluster IDs are derived from it
+     * @param id
+     *            path ID of the cell
+     */
+    void visit(GeoRect cell, long id, IClusterVisitor visitor) {
+        for (int entry = 0; entry < entries; entry++) {
+            visit(entry, cell, id, visitor);
+        }
+    }
+
+    /**
+     * Same as {@link #visit(GeoRect, long, IClusterVisitor)} for entries within given range only
+     */
+    void visit(GeoRect cell, long id, GeoRect range, IClusterVisitor visitor) {
+        for (int entry = 0; entry < entries; entry++) {
+            if (range.contains(lngs[entry], lats[entry])) {
+                visit(entry, cell, id, visitor);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #visit(GeoRect, long, IClusterVisitor)} for entries routed into the subcell with given path ID
+     * only
+     */
+    void visit(GeoRect cell, long id, long subcellId, IClusterVisitor visitor) {
+        int levels = QTNode.getPathDepth(subcellId) - QTNode.getPathDepth(id);
+        for (int entry = 0; entry < entries; entry++) {
+            if (QTNode.descendPath(id, cell.bLx, cell.bLy, cell.tRx, cell.tRy, lngs[entry], lats[entry],
+                    levels) == subcellId) {
+                visit(entry, cell, id, visitor);
+            }
+        }
+    }
+
+    private void visit(int entry, GeoRect cell, long id, IClusterVisitor visitor) {
+        Object payload = payloads[entry];
+        if (payload instanceof Group) {
+            Group group = (Group) payload;
+            if (group.cluster == null) {
+                group.cluster = new GeoCluster(QTNode.getColocatedId(id, cell, lngs[entry], lats[entry]),
+                        lngs[entry], lats[entry], group.points.size(), Collections.unmodifiableList(group.points));
+            }
+            visitor.visitCluster(group.cluster);
+        } else {
+            visitor.visitPoint((IGeoPoint) payload);
+        }
+    }
+
+    @Override
+    public Iterator<IGeoPoint> iterator() {
+        return iterator(0);
+    }
+
+    /**
+     * @return iterator starting at given position, entries before it are skipped by their counts
+     */
+    Iterator<IGeoPoint> iterator(int offset) {
+        int first = 0;
+        while (first < entries && offset >= getCount(first)) {
+            offset -= getCount(first);
+            first++;
+        }
+        final int firstEntry = first, firstIndex = offset;
+
+        return new Iterator<IGeoPoint>() {
+            private int entry = firstEntry;
+            private int i = firstIndex;
+
+            @Override
+            public boolean hasNext() {
+                return entry < entries;
+            }
+
+            @Override
+            public IGeoPoint next() {
+                if (entry >= entries) {
+                    throw new NoSuchElementException();
+                }
+                IGeoPoint p = getPoint(entry, i);
+                if (++i == getCount(entry)) {
+                    entry++;
+                    i = 0;
+                }
+                return p;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Reorders points <code>[from, to)</code> so that co-located ones are contiguous, in the order their coordinates
+     * first appear. This is the order of a multiset filled with the same points.
+     */
+    static void group(IGeoPoint[] pts, int from, int to) {
+        if (!hasColocated(pts, from, to)) {
+            return;
+        }
+
+        Map<Long, List<IGeoPoint>> groups = new LinkedHashMap<Long, List<IGeoPoint>>();
+        for (int i = from; i < to; i++) {
+            Long key = key(pts[i].getLng(), pts[i].getLat());
+            List<IGeoPoint> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<IGeoPoint>(1);
+                groups.put(key, group);
+            }
+            group.add(pts[i]);
+        }
+        int i = from;
+        for (List<IGeoPoint> group : groups.values()) {
+            for (IGeoPoint p : group) {
+                pts[i++] = p;
+            }
+        }
+    }
+
+    private static boolean hasColocated(IGeoPoint[] pts, int from, int to) {
+        if (to - from > INDEX_THRESHOLD) {
+            return true;
+        }
+        for (int i = from; i < to; i++) {
+            for (int j = i + 1; j < to; j++) {
+                if (pts[i].getLng() == pts[j].getLng() && pts[i].getLat() == pts[j].getLat()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds points <code>[from, to)</code> of a list grouped by {@link #group(IGeoPoint[], int, int)}, each run of
+     * co-located points as one weighted cluster over a view of the list
+     *
+     * @param cell
+     *            bounds of a tree cell holding the points, cluster IDs are derived from it
+     * @param id
+     *            path ID of the cell
+     */
+    static void addGrouped(List<IGeoPoint> pts, int from, int to, GeoRect cell, long id, Collection<IGeoPoint> out) {
+        addGrouped(pts, from, to, cell, id, null, out);
+    }
+
+    /**
+     * Same as {@link #addGrouped(List, int, int, GeoRect, long, Collection)} for points within given range only
+     *
+     * @param range
+     *            range to filter points by, <code>null</code> to add all of them
+     */
+    static void addGrouped(List<IGeoPoint> pts, int from, int to, GeoRect cell, long id, GeoRect range,
+            Collection<IGeoPoint> out) {
+        int i = from;
+        while (i < to) {
+            IGeoPoint p = pts.get(i);
+            int j = i + 1;
+            while (j < to && pts.get(j).getLng() == p.getLng() && pts.get(j).getLat() == p.getLat()) {
+                j++;
+            }
+            if (range == null || range.contains(p)) {
+                if (j - i == 1) {
+                    out.add(p);
+                } else {
+                    out.add(new GeoCluster(QTNode.getColocatedId(id, cell, p.getLng(), p.getLat()), p.getLng(),
+                            p.getLat(), j - i, Collections.unmodifiableList(pts.subList(i, j))));
+                }
+            }
+            i = j;
+        }
+    }
+}
@@ -0,0 +1,539 @@
+package com.quadtree.clustering;
+
+import java.util.*;
+
+/**
+ * Read-only quad-tree keeping nodes in parallel primitive arrays instead of an object graph. Points are stored in
+ * depth-first order, so every node owns a contiguous range <code>[start, start + count)</code> of the point arrays.
+ * Co-located points of a leaf are adjacent and reported as one weighted cluster, as {@link QTNode} leaves do.
+ * <p>
+ * Builds the same tree as {@link QTNode} and answers {@link #query(GeoRect)} and
+ * {@link #getNearestPoints(int, IGeoPoint)} identically. A mutable tree can be compiled into this form with
+ * {@link QTNode#freeze()}.
+ * <p>
+ * Instances are immutable and can be shared between threads without locking.
+ *
+ */
+public class FlatQuadTree implements IQuadTree {
+    private static final int NO_CHILDREN = -1;
+    private static final int INITIAL_NODES_CAPACITY = 64;
+
+    private final IGeoPoint[] items;
+    private final List<IGeoPoint> itemsList;
+    private final int[] lngs;
+    private final int[] lats;
+
+    private final int nodesCount;
+    private final int[] firstChild;
+    private final int[] start;
+    private final int[] count;
+    private final long[] sumX;
+    private final long[] sumY;
+    private final int[] bLx, bLy, tRx, tRy;
+    /**
+     * Paths of the nodes from the root, see {@link GeoCluster#getId()}
+     */
+    private final long[] ids;
+    private final GeoRect boundBox;
+
+    /**
+     * Growable node arrays of a tree under construction. Nodes only get their bounds, children and point ranges,
+     * counts and sums are derived when the tree is created.
+     */
+    static class Layout {
+        final List<IGeoPoint> items;
+
+        int nodesCount;
+        int[] firstChild = new int[INITIAL_NODES_CAPACITY];
+        int[] start = new int[INITIAL_NODES_CAPACITY];
+        int[] end = new int[INITIAL_NODES_CAPACITY];
+        int[] bLx = new int[INITIAL_NODES_CAPACITY];
+        int[] bLy = new int[INITIAL_NODES_CAPACITY];
+        int[] tRx = new int[INITIAL_NODES_CAPACITY];
+        int[] tRy = new int[INITIAL_NODES_CAPACITY];
+
+        /**
+         * @param items
+         *            points in depth-first order, can be appended while nodes are added
+         */
+        Layout(List<IGeoPoint> items) {
+            this.items = items;
+        }
+
+        /**
+         * Reserves <code>n</code> consecutive node slots
+         *
+         * @return index of the first reserved slot
+         */
+        int newNodes(int n) {
+            int first = nodesCount;
+            nodesCount += n;
+            if (nodesCount > firstChild.length) {
+                int capacity = Math.max(nodesCount, firstChild.length * 2);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                start = Arrays.copyOf(start, capacity);
+                end = Arrays.copyOf(end, capacity);
+                bLx = Arrays.copyOf(bLx, capacity);
+                bLy = Arrays.copyOf(bLy, capacity);
+                tRx = Arrays.copyOf(tRx, capacity);
+                tRy = Arrays.copyOf(tRy, capacity);
+            }
+            return first;
+        }
+
+        /**
+         * @param firstChild
+         *            index of the first of four consecutive children, or a negative value for a leaf
+         */
+        void setNode(int node, GeoRect bounds, int firstChild, int start, int end) {
+            setNode(node, bounds.bLx, bounds.bLy, bounds.tRx, bounds.tRy, firstChild, start, end);
+        }
+
+        void setNode(int node, int l, int b, int r, int t, int firstChild, int start, int end) {
+            bLx[node] = l;
+            bLy[node] = b;
+            tRx[node] = r;
+            tRy[node] = t;
+            this.firstChild[node] = firstChild < 0 ? NO_CHILDREN : firstChild;
+            this.start[node] = start;
+            this.end[node] = end;
+        }
+    }
+
+    /**
+     * @param pts
+     *            collection of geopoint
+     * @param boundingBox
+     *            bounding box of the root node, must not cross 180 meridian
+     * @param maxPoints
+     *            maximum number of points in a leaf-node
+     */
+    public FlatQuadTree(Collection<? extends IGeoPoint> pts, GeoRect boundingBox, int maxPoints) {
+        this(layout(pts, boundingBox, maxPoints));
+    }
+
+    /**
+     * Creates tree of given shape, node 0 being the root
+     */
+    FlatQuadTree(Layout layout) {
+        items = layout.items.toArray(new IGeoPoint[layout.items.size()]);
+        itemsList = Collections.unmodifiableList(Arrays.asList(items));
+
+        int n = items.length;
+        lngs = new int[n];
+        lats = new int[n];
+        for (int i = 0; i < n; i++) {
+            lngs[i] = items[i].getLng();
+            lats[i] = items[i].getLat();
+        }
+
+        nodesCount = layout.nodesCount;
+        firstChild = Arrays.copyOf(layout.firstChild, nodesCount);
+        start = Arrays.copyOf(layout.start, nodesCount);
+        bLx = Arrays.copyOf(layout.bLx, nodesCount);
+        bLy = Arrays.copyOf(layout.bLy, nodesCount);
+        tRx = Arrays.copyOf(layout.tRx, nodesCount);
+        tRy = Arrays.copyOf(layout.tRy, nodesCount);
+        boundBox = new GeoRect(bLx[0], bLy[0], tRx[0], tRy[0]);
+
+        ids = new long[nodesCount];
+        ids[0] = QTNode.ROOT_ID;
+        for (int node = 0; node < nodesCount; node++) {
+            if (!isLeaf(node)) {
+                for (int i = 0; i < QTNode.DEFAULT_CHILDREN_COUNT; i++) {
+                    ids[firstChild[node] + i] = ids[node] << 2 | i;
+                }
+            }
+        }
+
+        count = new int[nodesCount];
+        sumX = new long[nodesCount];
+        sumY = new long[nodesCount];
+        // children always follow their parent, so sums can be accumulated bottom-up in one reverse pass
+        for (int node = nodesCount - 1; node >= 0; node--) {
+            count[node] = layout.end[node] - start[node];
+            if (isLeaf(node)) {
+                for (int i = start[node]; i < layout.end[node]; i++) {
+                    sumX[node] += lngs[i];
+                    sumY[node] += lats[i];
+                }
+            } else {
+                for (int child = firstChild[node]; child < firstChild[node] + QTNode.DEFAULT_CHILDREN_COUNT; child++) {
+                    sumX[node] += sumX[child];
+                    sumY[node] += sumY[child];
+                }
+            }
+        }
+    }
+
+    private static Layout layout(Collection<? extends IGeoPoint> pts, GeoRect boundingBox, int maxPoints) {
+        if (boundingBox.crossesAntimeridian) {
+            throw new IllegalArgumentException("Bounding box " + boundingBox + " crosses 180 meridian");
+        }
+
+        MortonOrder order = new MortonOrder(pts, boundingBox);
+        Layout layout = new Layout(Arrays.asList(order.points));
+        int root = layout.newNodes(1);
+        build(layout, root, order, 0, order.size(), 0, boundingBox.bLx, boundingBox.bLy, boundingBox.tRx,
+                boundingBox.tRy, maxPoints);
+        return layout;
+    }
+
+    /**
+     * Fills node at given index with the run <code>[from, to)</code> of Morton-sorted points and splits it
+     * recursively, exactly as {@link QTNode} does.
+     */
+    private static void build(Layout layout, int node, MortonOrder order, int from, int to, int depth, int l, int b,
+            int r, int t, int maxPoints) {
+        if (to - from <= maxPoints || depth >= MortonOrder.MAX_DEPTH || !QTNode.isSplittable(l, b, r, t)) {
+            // keys are not needed below a leaf, only points are reordered
+            CoordinateMultiset.group(order.points, from, to);
+            layout.setNode(node, l, b, r, t, NO_CHILDREN, from, to);
+            return;
+        }
+
+        int first = layout.newNodes(QTNode.DEFAULT_CHILDREN_COUNT);
+        layout.setNode(node, l, b, r, t, first, from, to);
+
+        int cX = (r + l) / 2;
+        int cY = (t + b) / 2;
+
+        int[] bounds = new int[QTNode.DEFAULT_CHILDREN_COUNT + 1];
+        bounds[0] = from;
+        bounds[QTNode.DEFAULT_CHILDREN_COUNT] = to;
+        for (int q = 1; q < QTNode.DEFAULT_CHILDREN_COUNT; q++) {
+            bounds[q] = order.lowerBound(bounds[q - 1], to, depth, q);
+        }
+
+        build(layout, first, order, bounds[0], bounds[1], depth + 1, l, cY, cX, t, maxPoints);
+        build(layout, first + 1, order, bounds[1], bounds[2], depth + 1, cX, cY, r, t, maxPoints);
+        build(layout, first + 2, order, bounds[2], bounds[3], depth + 1, cX, b, r, cY, maxPoints);
+        build(layout, first + 3, order, bounds[3], bounds[4], depth + 1, l, b, cX, cY, maxPoints);
+    }
+
+    private static int lngSpan(int l, int r) {
+        return l > r ? 360000000 + r - l : r - l;
+    }
+
+    private boolean isLeaf(int node) {
+        return firstChild[node] == NO_CHILDREN;
+    }
+
+    private boolean contains(int node, IGeoPoint p) {
+        if (p.getLat() < bLy[node] || p.getLat() > tRy[node]) {
+            return false;
+        }
+        if (bLx[node] > tRx[node]) {
+            return bLx[node] <= p.getLng() || p.getLng() <= tRx[node];
+        } else {
+            return bLx[node] <= p.getLng() && p.getLng() <= tRx[node];
+        }
+    }
+
+    private boolean intersects(GeoRect range, int node) {
+        return range.intersects(bLx[node], bLy[node], tRx[node], tRy[node]);
+    }
+
+    private GeoCluster getCluster(int node) {
+        int c = count[node];
+        return new GeoCluster(ids[node], (int) (sumX[node] / c), (int) (sumY[node] / c), c,
+                itemsList.subList(start[node], start[node] + c));
+    }
+
+    @Override
+    public int count(GeoRect range) {
+        return count(0, range);
+    }
+
+    private int count(int node, GeoRect range) {
+        if (count[node] == 0 || !intersects(range, node)) {
+            return 0;
+        }
+        if (range.contains(bLx[node], bLy[node], tRx[node], tRy[node])) {
+            return count[node];
+        }
+
+        int res = 0;
+        if (isLeaf(node)) {
+            for (int i = start[node]; i < start[node] + count[node]; i++) {
+                if (range.contains(lngs[i], lats[i])) {
+                    res++;
+                }
+            }
+        } else {
+            for (int child = firstChild[node]; child < firstChild[node] + QTNode.DEFAULT_CHILDREN_COUNT; child++) {
+                res += count(child, range);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void aggregate(GeoRect range, IAggregateVisitor visitor) {
+        aggregate(0, range, visitor);
+    }
+
+    private void aggregate(int node, GeoRect range, IAggregateVisitor visitor) {
+        if (count[node] == 0 || !intersects(range, node)) {
+            return;
+        }
+        if (range.contains(bLx[node], bLy[node], tRx[node], tRy[node])) {
+            visitor.visitNode(count[node], sumX[node], sumY[node]);
+            return;
+        }
+
+        if (isLeaf(node)) {
+            for (int i = start[node]; i < start[node] + count[node]; i++) {
+                if (range.contains(lngs[i], lats[i])) {
+                    visitor.visitPoint(items[i]);
+                }
+            }
+        } else {
+            for (int child = firstChild[node]; child < firstChild[node] + QTNode.DEFAULT_CHILDREN_COUNT; child++) {
+                aggregate(child, range, visitor);
+            }
+        }
+    }
+
+    @Override
+    public Collection<IGeoPoint> getNearestPoints(int atLeast, IGeoPoint where) {
+        Collection<IGeoPoint> result = new ArrayList<IGeoPoint>(atLeast);
+        int node = contains(0, where) ? findNodeWithNPoints(0, atLeast, where) : NO_CHILDREN;
+        if (node != NO_CHILDREN) {
+            result.addAll(itemsList.subList(start[node], start[node] + count[node]));
+        }
+        return result;
+    }
+
+    private int findNodeWithNPoints(int node, int n, IGeoPoint point) {
+        if (isLeaf(node)) {
+            return NO_CHILDREN;
+        }
+        int res = firstChild[node] + QTNode.quadrantOf(point.getLng(), point.getLat(),
+                (tRx[node] + bLx[node]) / 2, (tRy[node] + bLy[node]) / 2);
+        if (count[res] > n) {
+            int subRes = findNodeWithNPoints(res, n, point);
+            if (subRes != NO_CHILDREN && count[subRes] >= n) {
+                res = subRes;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Same search as {@link QTNode#nearest(int, int, int)}, both queues are kept in primitive heaps
+     */
+    @Override
+    public List<IGeoPoint> nearest(int k, int lat, int lng) {
+        if (k <= 0) {
+            return new ArrayList<IGeoPoint>();
+        }
+
+        DistanceHeap nodes = new DistanceHeap(false);
+        // farthest candidate on top
+        DistanceHeap best = new DistanceHeap(true);
+
+        nodes.push(QTNode.distanceTo(bLx[0], bLy[0], tRx[0], tRy[0], lng, lat), 0);
+        while (nodes.size > 0) {
+            if (best.size == k && nodes.topDistance() > best.topDistance()) {
+                break;
+            }
+            int node = nodes.pop();
+
+            if (isLeaf(node)) {
+                for (int i = start[node]; i < start[node] + count[node]; i++) {
+                    long d = QTNode.distance(lngs[i], lats[i], lng, lat);
+                    if (best.size < k) {
+                        best.push(d, i);
+                    } else if (d < best.topDistance()) {
+                        best.pop();
+                        best.push(d, i);
+                    }
+                }
+            } else {
+                for (int child = firstChild[node]; child < firstChild[node] + QTNode.DEFAULT_CHILDREN_COUNT; child++) {
+                    if (count[child] > 0) {
+                        long d = QTNode.distanceTo(bLx[child], bLy[child], tRx[child], tRy[child], lng, lat);
+                        if (best.size < k || d <= best.topDistance()) {
+                            nodes.push(d, child);
+                        }
+                    }
+                }
+            }
+        }
+
+        IGeoPoint[] res = new IGeoPoint[best.size];
+        for (int i = res.length - 1; i >= 0; i--) {
+            res[i] = items[best.pop()];
+        }
+        return new ArrayList<IGeoPoint>(Arrays.asList(res));
+    }
+
+    /**
+     * Binary heap of indices ordered by distance
+     */
+    private static class DistanceHeap {
+        private final boolean maxOnTop;
+        private long[] distances = new long[16];
+        private int[] indices = new int[16];
+        int size;
+
+        DistanceHeap(boolean maxOnTop) {
+            this.maxOnTop = maxOnTop;
+        }
+
+        long topDistance() {
+            return distances[0];
+        }
+
+        void push(long distance, int index) {
+            if (size == distances.length) {
+                distances = Arrays.copyOf(distances, size * 2);
+                indices = Arrays.copyOf(indices, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!before(distance, distances[parent])) {
+                    break;
+                }
+                distances[i] = distances[parent];
+                indices[i] = indices[parent];
+                i = parent;
+            }
+            distances[i] = distance;
+            indices[i] = index;
+        }
+
+        /**
+         * @return index on top of the heap
+         */
+        int pop() {
+            int top = indices[0];
+            size--;
+            long distance = distances[size];
+            int index = indices[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && before(distances[child + 1], distances[child])) {
+                    child++;
+                }
+                if (!before(distances[child], distance)) {
+                    break;
+                }
+                distances[i] = distances[child];
+                indices[i] = indices[child];
+                i = child;
+            }
+            distances[i] = distance;
+            indices[i] = index;
+            return top;
+        }
+
+        private boolean before(long lhs, long rhs) {
+            return maxOnTop ? lhs > rhs : lhs < rhs;
+        }
+    }
+
+    @Override
+    public Collection<? extends IGeoPoint> query(GeoRect range) {
+        // traversal entries are node indices shifted left, the lowest bit tells whether the node lies entirely
+        // within the range
+        int[] level = new int[QTNode.DEFAULT_CHILDREN_COUNT];
+        int[] buffer = new int[QTNode.DEFAULT_CHILDREN_COUNT];
+        int[] result = new int[QTNode.DEFAULT_CHILDREN_COUNT];
+        int levelSize = 1, resultSize = 0;
+        level[0] = entry(0, contains(range, 0));
+
+        while (levelSize > 0 && !Thread.currentThread().isInterrupted()) {
+            int bufferSize = 0;
+            for (int i = 0; i < levelSize; i++) {
+                int node = level[i] >>> 1;
+                boolean contained = (level[i] & 1) != 0;
+                if (isLeaf(node)) {
+                    result = ensureCapacity(result, resultSize + 1);
+                    result[resultSize++] = level[i];
+                } else {
+                    buffer = ensureCapacity(buffer, bufferSize + QTNode.DEFAULT_CHILDREN_COUNT);
+                    for (int child = firstChild[node]; child < firstChild[node] + QTNode.DEFAULT_CHILDREN_COUNT;
+                            child++) {
+                        if (count[child] == 0) {
+                            continue;
+                        }
+                        if (contained) {
+                            buffer[bufferSize++] = entry(child, true);
+                        } else if (intersects(range, child)) {
+                            buffer[bufferSize++] = entry(child, contains(range, child));
+                        }
+                    }
+                }
+            }
+
+            int last = level[levelSize - 1] >>> 1;
+            if (range.getLngSpan() < lngSpan(bLx[last], tRx[last]) && range.getLatSpan() < tRy[last] - bLy[last]) {
+                int[] tmp = level;
+                level = buffer;
+                buffer = tmp;
+                levelSize = bufferSize;
+            } else {
+                result = ensureCapacity(result, resultSize + bufferSize);
+                System.arraycopy(buffer, 0, result, resultSize, bufferSize);
+                resultSize += bufferSize;
+                levelSize = 0;
+            }
+        }
+
+        List<IGeoPoint> res = new ArrayList<IGeoPoint>();
+        for (int i = 0; i < resultSize; i++) {
+            addSuccessors(result[i] >>> 1, (result[i] & 1) != 0, range, res);
+        }
+        return res;
+    }
+
+    private static int entry(int node, boolean contained) {
+        return node << 1 | (contained ? 1 : 0);
+    }
+
+    private boolean contains(GeoRect range, int node) {
+        return range.contains(bLx[node], bLy[node], tRx[node], tRy[node]);
+    }
+
+    /**
+     * Adds successors (points or clusters) of given node within given bounding box
+     * 
+     * @param contained
+     *            whether the node lies entirely within the range
+     */
+    private void addSuccessors(int node, boolean contained, GeoRect rect, List<IGeoPoint> out) {
+        if (isLeaf(node)) {
+            CoordinateMultiset.addGrouped(itemsList, start[node], start[node] + count[node], boundBox, QTNode.ROOT_ID,
+                    contained ? null : rect, out);
+            return;
+        }
+        for (int child = firstChild[node]; child < firstChild[node] + QTNode.DEFAULT_CHILDREN_COUNT; child++) {
+            if (count[child] == 1) {
+                if (contained || rect.contains(lngs[start[child]], lats[start[child]])) {
+                    out.add(items[start[child]]);
+                }
+            } else if (count[child] > 1 && (contained || intersects(rect, child))) {
+                out.add(getCluster(child));
+            }
+        }
+    }
+
+    private static int[] ensureCapacity(int[] array, int capacity) {
+        if (capacity <= array.length) {
+            return array;
+        }
+        return Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+    }
+
+    @Override
+    public String toString() {
+        return "FlatQuadTree[nodes=" + nodesCount + ";points=" + items.length + "]";
+    }
+}
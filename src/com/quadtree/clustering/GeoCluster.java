@@ -1,19 +1,43 @@
 package com.quadtree.clustering;
 
-import java.util.Collection;
+import java.util.*;
+import java.util.function.Consumer;
 
 /**
- * Cluster of points representation
- * 
+ * Cluster of points representation.
+ * <p>
+ * Reported clusters are snapshots of a tree node taken when it is reported: later changes of the tree produce new
+ * clusters instead of updating reported ones. They are cached and shared between queries, so they should be treated
+ * as immutable: {@link #move(int, int)} only changes the position of the instance, never the tree.
+ * <p>
+ * The ID is the path of the node from the tree root (1 for the root, two more bits with the quadrant index per level),
+ * so the same node is reported under the same ID across queries and results can be diffed and cached by it.
+ * Co-located points are reported under the path of their coordinates down to the deepest possible level, which no
+ * node reaches. Clusters built from a plain collection have {@link #NO_ID}.
+ * <p>
+ * Members are not copied: they are enumerated lazily from the tree, and paging through them with
+ * {@link #iterator(int, int)} costs the tree depth plus the page size. Members of a {@link QTNode} cluster are read
+ * from the live tree, so iteration fails with {@link ConcurrentModificationException} once the node has changed since
+ * the cluster was reported.
+ *
  * @author colriot
  * @since Jul 9, 2012
- * 
+ *
  */
-public class GeoCluster extends GeoPointInternal {
+public class GeoCluster extends GeoPointInternal implements Iterable<IGeoPoint> {
 
-    private Collection<IGeoPoint> points;
+    /**
+     * ID of clusters which are not nodes of a tree, never a path
+     */
+    public static final long NO_ID = 0;
+
+    private final long id;
+    private final int size;
+    private final Collection<IGeoPoint> points;
 
     /**
+     * Cluster of given points, not tied to a tree node
+     *
      * @param lng
      *            cluster longitude
      * @param lat
@@ -22,18 +46,198 @@ public class GeoCluster extends GeoPointInternal {
      *            objects in this cluster
      */
     public GeoCluster(int lng, int lat, Collection<IGeoPoint> points) {
+        this(NO_ID, lng, lat, points.size(), points);
+    }
+
+    /**
+     * @param id
+     *            path of the clustered node from the tree root
+     * @param lng
+     *            cluster longitude
+     * @param lat
+     *            cluster latitude
+     * @param size
+     *            number of points in this cluster
+     * @param points
+     *            objects in this cluster
+     */
+    public GeoCluster(long id, int lng, int lat, int size, Collection<IGeoPoint> points) {
         super(lng, lat);
+        this.id = id;
+        this.size = size;
         this.points = points;
     }
 
+    /**
+     * @return stable identifier of the clustered node, {@link #NO_ID} if the cluster is not a tree node
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return number of points in this cluster at the time it was reported
+     */
     public int getSize() {
-        return points.size();
+        return size;
     }
 
+    /**
+     * @return read-only view of the points in this cluster
+     */
     public Collection<IGeoPoint> getPoints() {
         return points;
     }
 
+    /**
+     * @param offset
+     *            position of the first point of the page
+     * @param limit
+     *            maximum number of points in the page
+     * @return copy of the given page of the points in this cluster
+     */
+    public List<IGeoPoint> getPoints(int offset, int limit) {
+        List<IGeoPoint> page = new ArrayList<IGeoPoint>(Math.max(Math.min(limit, size - offset), 0));
+        for (Iterator<IGeoPoint> it = iterator(offset, limit); it.hasNext();) {
+            page.add(it.next());
+        }
+        return page;
+    }
+
+    @Override
+    public Iterator<IGeoPoint> iterator() {
+        return iterator(0, size);
+    }
+
+    /**
+     * @param offset
+     *            position of the first returned point, points before it are skipped without being enumerated
+     * @param limit
+     *            maximum number of returned points
+     * @return read-only iterator over the given page of the points in this cluster
+     */
+    public Iterator<IGeoPoint> iterator(int offset, final int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Illegal page " + offset + "+" + limit);
+        }
+        final Iterator<IGeoPoint> it = iteratorFrom(offset);
+
+        return new Iterator<IGeoPoint>() {
+            private int returned;
+
+            @Override
+            public boolean hasNext() {
+                return returned < limit && it.hasNext();
+            }
+
+            @Override
+            public IGeoPoint next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                returned++;
+                return it.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private Iterator<IGeoPoint> iteratorFrom(int offset) {
+        if (points instanceof ClusterMembers) {
+            return ((ClusterMembers) points).iterator(offset);
+        }
+        if (points instanceof List) {
+            List<IGeoPoint> list = (List<IGeoPoint>) points;
+            return list.listIterator(Math.min(offset, list.size()));
+        }
+        Iterator<IGeoPoint> it = points.iterator();
+        for (int i = 0; i < offset && it.hasNext(); i++) {
+            it.next();
+        }
+        return it;
+    }
+
+    /**
+     * @return spliterator over the points in this cluster, split into halves of the position range, each of them
+     *         positioned as a page
+     */
+    @Override
+    public Spliterator<IGeoPoint> spliterator() {
+        return new MembersSpliterator(0, size);
+    }
+
+    private final class MembersSpliterator implements Spliterator<IGeoPoint> {
+        private int from;
+        private final int to;
+        private Iterator<IGeoPoint> it;
+
+        MembersSpliterator(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super IGeoPoint> action) {
+            if (it == null) {
+                it = iterator(from, to - from);
+            }
+            if (!it.hasNext()) {
+                return false;
+            }
+            from++;
+            action.accept(it.next());
+            return true;
+        }
+
+        @Override
+        public Spliterator<IGeoPoint> trySplit() {
+            if (it != null || to - from < 2) {
+                return null;
+            }
+            int mid = (from + to) >>> 1;
+            Spliterator<IGeoPoint> prefix = new MembersSpliterator(from, mid);
+            from = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return to - from;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL;
+        }
+    }
+
+    /**
+     * @return whether given object is a cluster of the same node with the same size and centroid
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof GeoCluster)) {
+            return false;
+        }
+        GeoCluster other = (GeoCluster) o;
+        return id == other.id && size == other.size && x == other.x && y == other.y;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = (int) (id ^ id >>> 32);
+        h = 31 * h + size;
+        h = 31 * h + x;
+        return 31 * h + y;
+    }
+
     @Override
     public String toString() {
         return "Cl" + super.toString();
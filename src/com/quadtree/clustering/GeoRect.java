@@ -6,8 +6,14 @@ package com.quadtree.clustering;
  *
  */
 public class GeoRect {
-    protected GeoPointInternal bL;
-    protected GeoPointInternal tR;
+    /**
+     * Corner coordinates are kept as primitives, so bound tests in the tree do not chase corner objects
+     */
+    protected final int bLx, bLy, tRx, tRy;
+    /**
+     * Whether 180 to -180 border crosses this rect, i.e. its left longitude is greater than the right one
+     */
+    protected final boolean crossesAntimeridian;
 
     /**
      * @param bL
@@ -16,8 +22,7 @@ public class GeoRect {
      *            top right corner
      */
     public GeoRect(GeoPointInternal bL, GeoPointInternal tR) {
-        this.bL = bL;
-        this.tR = tR;
+        this(bL.x, bL.y, tR.x, tR.y);
     }
 
     /**
@@ -31,52 +36,112 @@ public class GeoRect {
      *            top right latitude
      */
     public GeoRect(int bLx, int bLy, int tRx, int tRy) {
-        this(new GeoPointInternal(bLx, bLy), new GeoPointInternal(tRx, tRy));
+        this.bLx = bLx;
+        this.bLy = bLy;
+        this.tRx = tRx;
+        this.tRy = tRy;
+        this.crossesAntimeridian = bLx > tRx;
     }
 
     public int getLatSpan() {
-        return tR.getLat() - bL.getLat();
+        return tRy - bLy;
     }
 
     public int getLngSpan() {
-        if (bL.getLng() > tR.getLng()) {
-            return 360000000 + tR.getLng() - bL.getLng();
+        if (crossesAntimeridian) {
+            return 360000000 + tRx - bLx;
         } else {
-            return tR.getLng() - bL.getLng();
+            return tRx - bLx;
         }
     }
 
-    public boolean contains(int lng, int lat) {
-        return contains(new GeoPointInternal(lng, lat));
+    /**
+     * @return whether 180 to -180 border crosses this rect
+     */
+    public boolean crossesAntimeridian() {
+        return crossesAntimeridian;
     }
 
-    public boolean contains(IGeoPoint p) {
-        if (p.getLat() < bL.getLat() || p.getLat() > tR.getLat()) {
+    public boolean contains(int lng, int lat) {
+        if (lat < bLy || lat > tRy) {
             return false;
         }
+        return containsLng(lng);
+    }
 
-        // if 180 to -180 border crosses this bounding box
-        if (bL.getLng() > tR.getLng()) {
-            return bL.getLng() <= p.getLng() || p.getLng() <= tR.getLng();
+    public boolean contains(IGeoPoint p) {
+        return contains(p.getLng(), p.getLat());
+    }
+
+    /**
+     * @return whether given longitude is within this rect
+     */
+    public boolean containsLng(int lng) {
+        if (crossesAntimeridian) {
+            return bLx <= lng | lng <= tRx;
         } else {
-            return bL.getLng() <= p.getLng() && p.getLng() <= tR.getLng();
+            return bLx <= lng & lng <= tRx;
         }
     }
 
     public boolean intersects(GeoRect rect) {
-        if (bL.getLng() < tR.getLng() && rect.bL.getLng() < rect.tR.getLng()) {
-            return!(tR.x < rect.bL.x || bL.x > rect.tR.x || tR.y < rect.bL.y || bL.y > rect.tR.y);
-        } else if (bL.getLng() > tR.getLng() && rect.bL.getLng() > rect.tR.getLng()) {
-            return tR.y >= rect.bL.y && bL.y <= rect.tR.y;
-        } else if (bL.getLng() > tR.getLng()) {
-            return (rect.bL.x < tR.x || bL.x < rect.tR.x) && tR.y >= rect.bL.y && bL.y <= rect.tR.y;
-        } else /*if (rect.bL.getLng() > rect.tR.getLng())*/{
-            return (bL.x < rect.tR.x || rect.bL.x < tR.x) && tR.y >= rect.bL.y && bL.y <= rect.tR.y;
+        return intersects(rect.bLx, rect.bLy, rect.tRx, rect.tRy);
+    }
+
+    /**
+     * @param bLx
+     *            bottom left longitude
+     * @param bLy
+     *            bottom left latitude
+     * @param tRx
+     *            top right longitude
+     * @param tRy
+     *            top right latitude
+     * @return whether this rect intersects the given one, touching borders included
+     */
+    public boolean intersects(int bLx, int bLy, int tRx, int tRy) {
+        boolean lat = this.bLy <= tRy & bLy <= this.tRy;
+        boolean wraps = bLx > tRx;
+        if (!(crossesAntimeridian | wraps)) {
+            return lat & this.bLx <= tRx & bLx <= this.tRx;
+        }
+        if (crossesAntimeridian & wraps) {
+            // both hold 180 meridian
+            return lat;
+        }
+        // the wrapping rect is decomposed into [left, 180] and [-180, right] halves, the other one intersects the
+        // first half if it reaches its left longitude and the second one if it starts before its right longitude
+        return lat & (this.bLx <= tRx | bLx <= this.tRx);
+    }
+
+    public boolean contains(GeoRect rect) {
+        return contains(rect.bLx, rect.bLy, rect.tRx, rect.tRy);
+    }
+
+    /**
+     * @param bLx
+     *            bottom left longitude
+     * @param bLy
+     *            bottom left latitude
+     * @param tRx
+     *            top right longitude
+     * @param tRy
+     *            top right latitude
+     * @return whether the given rect lies entirely within this one
+     */
+    public boolean contains(int bLx, int bLy, int tRx, int tRy) {
+        if (bLy < this.bLy || tRy > this.tRy) {
+            return false;
+        }
+        if (crossesAntimeridian) {
+            // the given rect is either on one side of 180 meridian or crosses it as well
+            return bLx > tRx ? this.bLx <= bLx && tRx <= this.tRx : this.bLx <= bLx || tRx <= this.tRx;
         }
+        return bLx <= tRx && this.bLx <= bLx && tRx <= this.tRx;
     }
 
     @Override
     public String toString() {
-        return "Rect[bL=" + bL + ";tR=" + tR + "]";
+        return String.format("Rect[bL=(%d,%d);tR=(%d,%d)]", bLx, bLy, tRx, tRy);
     }
 }
@@ -0,0 +1,24 @@
+package com.quadtree.clustering;
+
+/**
+ * Receives totals of a range aggregation, see {@link IQuadTree#aggregate(GeoRect, IAggregateVisitor)}. Points within
+ * the range are reported either as a whole subtree or one by one, each point exactly once.
+ *
+ */
+public interface IAggregateVisitor {
+    /**
+     * @param count
+     *            number of points of a subtree lying entirely within the range
+     * @param lngSum
+     *            sum of their longitudes
+     * @param latSum
+     *            sum of their latitudes
+     */
+    public void visitNode(int count, long lngSum, long latSum);
+
+    /**
+     * @param p
+     *            single point within the range, from a subtree crossing its border
+     */
+    public void visitPoint(IGeoPoint p);
+}
@@ -0,0 +1,19 @@
+package com.quadtree.clustering;
+
+/**
+ * Receives results of a range query one by one, see {@link QTNode#query(GeoRect, QueryContext, IClusterVisitor)}
+ *
+ */
+public interface IClusterVisitor {
+    /**
+     * @param p
+     *            single point within the range
+     */
+    public void visitPoint(IGeoPoint p);
+
+    /**
+     * @param cluster
+     *            cluster of several points within the range
+     */
+    public void visitCluster(GeoCluster cluster);
+}
@@ -0,0 +1,58 @@
+package com.quadtree.clustering;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Common read interface of quad-tree clustering engines, see {@link QTEngine}
+ *
+ */
+public interface IQuadTree {
+    /**
+     * @param range
+     *            visible area
+     * @return points and {@link GeoCluster}s within given range
+     */
+    public Collection<? extends IGeoPoint> query(GeoRect range);
+
+    /**
+     * Counts points within given range without materializing them. Subtrees lying entirely within the range are
+     * answered from their totals, only nodes crossing range borders are descended into.
+     * 
+     * @param range
+     *            area to count points in
+     * @return number of points within given range
+     */
+    public int count(GeoRect range);
+
+    /**
+     * Same traversal as {@link #count(GeoRect)}, passing totals of the contained subtrees and the points of the
+     * boundary leaves to the visitor
+     * 
+     * @param range
+     *            area to aggregate points in
+     * @param visitor
+     *            receiver of the totals
+     */
+    public void aggregate(GeoRect range, IAggregateVisitor visitor);
+
+    /**
+     * @param atLeast
+     *            desired minimum number of points
+     * @param where
+     *            point of interest
+     * @return points of the smallest node around given point holding at least <code>atLeast</code> points
+     */
+    public Collection<IGeoPoint> getNearestPoints(int atLeast, IGeoPoint where);
+
+    /**
+     * @param k
+     *            number of points to find
+     * @param lat
+     *            latitude of point of interest
+     * @param lng
+     *            longitude of point of interest
+     * @return up to <code>k</code> points nearest to given location, closest first
+     */
+    public List<IGeoPoint> nearest(int k, int lat, int lng);
+}
@@ -0,0 +1,198 @@
+package com.quadtree.clustering;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Points of a bulk load sorted along the Z-order (Morton) curve of a quad-tree.
+ * <p>
+ * Key of a point is the sequence of child quadrant indices met while descending from the root bounding box to the
+ * smallest splittable cell holding that point, two bits per level starting from the most significant ones. Quadrants
+ * are computed with exactly the same integer centres as {@link QTNode} splits, so every tree node is a contiguous run
+ * of keys sharing the node's prefix and the tree can be emitted from sorted keys without re-partitioning points.
+ *
+ */
+final class MortonOrder {
+    static final int MAX_DEPTH = 31;
+
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    final IGeoPoint[] points;
+    final long[] keys;
+
+    /**
+     * @param pts
+     *            points to sort
+     * @param boundingBox
+     *            bounding box of the root node, must not cross 180 meridian
+     */
+    MortonOrder(Collection<? extends IGeoPoint> pts, GeoRect boundingBox) {
+        this(pts, boundingBox, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param pts
+     *            points to sort
+     * @param boundingBox
+     *            bounding box of the root node, must not cross 180 meridian
+     * @param pool
+     *            pool to compute keys in, or <code>null</code> to compute them in the calling thread
+     * @param sequentialCutoff
+     *            number of keys computed by a single task, must be positive
+     */
+    MortonOrder(Collection<? extends IGeoPoint> pts, GeoRect boundingBox, ForkJoinPool pool, int sequentialCutoff) {
+        IGeoPoint[] unsorted = pts.toArray(new IGeoPoint[pts.size()]);
+        int n = unsorted.length;
+        long[] unsortedKeys = new long[n];
+
+        if (pool == null || n <= sequentialCutoff) {
+            computeKeys(unsorted, unsortedKeys, 0, n, boundingBox);
+        } else {
+            pool.invoke(new KeysTask(unsorted, unsortedKeys, 0, n, boundingBox, sequentialCutoff));
+        }
+
+        points = new IGeoPoint[n];
+        keys = new long[n];
+        sort(unsorted, unsortedKeys, points, keys);
+    }
+
+    private static void computeKeys(IGeoPoint[] pts, long[] keys, int from, int to, GeoRect boundingBox) {
+        for (int i = from; i < to; i++) {
+            keys[i] = key(pts[i].getLng(), pts[i].getLat(), boundingBox);
+        }
+    }
+
+    private static class KeysTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final IGeoPoint[] pts;
+        private final long[] keys;
+        private final int from, to;
+        private final GeoRect boundingBox;
+        private final int sequentialCutoff;
+
+        KeysTask(IGeoPoint[] pts, long[] keys, int from, int to, GeoRect boundingBox, int sequentialCutoff) {
+            this.pts = pts;
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+            this.boundingBox = boundingBox;
+            this.sequentialCutoff = sequentialCutoff;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= sequentialCutoff) {
+                computeKeys(pts, keys, from, to, boundingBox);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new KeysTask(pts, keys, from, mid, boundingBox, sequentialCutoff),
+                        new KeysTask(pts, keys, mid, to, boundingBox, sequentialCutoff));
+            }
+        }
+    }
+
+    int size() {
+        return points.length;
+    }
+
+    /**
+     * @return quadrant index of point at given position on given tree level
+     */
+    int digit(int index, int depth) {
+        return (int) (keys[index] >>> shift(depth)) & 3;
+    }
+
+    /**
+     * @return first position in <code>[from, to)</code> whose digit on given level is not less than given one. All
+     *         keys in the range must share the prefix above this level.
+     */
+    int lowerBound(int from, int to, int depth, int digit) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (digit(mid, depth) < digit) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    private static int shift(int depth) {
+        return 2 * (MAX_DEPTH - 1 - depth);
+    }
+
+    static long key(int lng, int lat, GeoRect boundingBox) {
+        int l = boundingBox.bLx, b = boundingBox.bLy, r = boundingBox.tRx, t = boundingBox.tRy;
+
+        long key = 0;
+        for (int depth = 0; depth < MAX_DEPTH && QTNode.isSplittable(l, b, r, t); depth++) {
+            int cX = (r + l) / 2;
+            int cY = (t + b) / 2;
+            int q = QTNode.quadrantOf(lng, lat, cX, cY);
+            key |= (long) q << shift(depth);
+
+            if (q == 0 || q == 3) {
+                r = cX;
+            } else {
+                l = cX;
+            }
+            if (q == 0 || q == 1) {
+                b = cY;
+            } else {
+                t = cY;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Stable LSD radix sort of points by their keys. Passes over bytes equal for all keys are skipped, so only
+     * significant levels of the tree are paid for.
+     */
+    private static void sort(IGeoPoint[] srcPoints, long[] srcKeys, IGeoPoint[] dstPoints, long[] dstKeys) {
+        IGeoPoint[] outPoints = dstPoints;
+        long[] outKeys = dstKeys;
+        int n = srcKeys.length;
+        int[] counts = new int[RADIX];
+
+        for (int shift = 0; shift < Long.SIZE; shift += RADIX_BITS) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                counts[(int) (srcKeys[i] >>> shift) & (RADIX - 1)]++;
+            }
+            if (n == 0 || counts[(int) (srcKeys[0] >>> shift) & (RADIX - 1)] == n) {
+                continue;
+            }
+
+            int sum = 0;
+            for (int d = 0; d < RADIX; d++) {
+                int c = counts[d];
+                counts[d] = sum;
+                sum += c;
+            }
+            for (int i = 0; i < n; i++) {
+                int j = counts[(int) (srcKeys[i] >>> shift) & (RADIX - 1)]++;
+                dstPoints[j] = srcPoints[i];
+                dstKeys[j] = srcKeys[i];
+            }
+
+            IGeoPoint[] tmpPoints = srcPoints;
+            srcPoints = dstPoints;
+            dstPoints = tmpPoints;
+            long[] tmpKeys = srcKeys;
+            srcKeys = dstKeys;
+            dstKeys = tmpKeys;
+        }
+
+        // after the last swap sorted data is in src buffers
+        if (srcKeys != outKeys) {
+            System.arraycopy(srcPoints, 0, outPoints, 0, n);
+            System.arraycopy(srcKeys, 0, outKeys, 0, n);
+        }
+    }
+}
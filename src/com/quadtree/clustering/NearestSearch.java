@@ -0,0 +1,140 @@
+package com.quadtree.clustering;
+
+import java.util.*;
+
+/**
+ * Exact best-first search of the points nearest to a location in a pointer-based quad-tree. Nodes are expanded in
+ * the order of their distance to the location, and the search stops as soon as the nearest unexpanded node is farther
+ * than the k-th best candidate found so far.
+ *
+ * @param <N>
+ *            node type of the tree
+ */
+abstract class NearestSearch<N> {
+    final int k;
+    final int lat, lng;
+
+    private final PriorityQueue<NodeDistance<N>> nodes = new PriorityQueue<NodeDistance<N>>(16,
+            new Comparator<NodeDistance<N>>() {
+                @Override
+                public int compare(NodeDistance<N> lhs, NodeDistance<N> rhs) {
+                    return lhs.distance < rhs.distance ? -1 : (lhs.distance == rhs.distance ? 0 : 1);
+                }
+            });
+    // farthest candidate on top
+    private final PriorityQueue<PointDistance> best;
+
+    /**
+     * @param k
+     *            number of points to find
+     * @param lat
+     *            latitude of point of interest
+     * @param lng
+     *            longitude of point of interest
+     */
+    NearestSearch(int k, int lat, int lng) {
+        this.k = k;
+        this.lat = lat;
+        this.lng = lng;
+        best = new PriorityQueue<PointDistance>(Math.max(k, 1), new Comparator<PointDistance>() {
+            @Override
+            public int compare(PointDistance lhs, PointDistance rhs) {
+                return lhs.distance > rhs.distance ? -1 : (lhs.distance == rhs.distance ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * @return bounds of given node
+     */
+    abstract GeoRect getBounds(N node);
+
+    /**
+     * @return children of given node, <code>null</code> for a leaf. Missing and empty children are skipped.
+     */
+    abstract N[] getChildren(N node);
+
+    abstract boolean isEmpty(N node);
+
+    /**
+     * Passes points of given leaf to {@link #offer(IGeoPoint, long)}
+     */
+    abstract void visitLeaf(N leaf);
+
+    /**
+     * @return up to <code>k</code> points of given tree nearest to the location, closest first
+     */
+    List<IGeoPoint> search(N root) {
+        if (k <= 0) {
+            return new ArrayList<IGeoPoint>();
+        }
+
+        nodes.offer(new NodeDistance<N>(root, QTNode.distanceTo(getBounds(root), lng, lat)));
+        while (!nodes.isEmpty()) {
+            NodeDistance<N> nearestNode = nodes.poll();
+            if (best.size() == k && nearestNode.distance > best.peek().distance) {
+                break;
+            }
+
+            N[] children = getChildren(nearestNode.node);
+            if (children == null) {
+                visitLeaf(nearestNode.node);
+            } else {
+                for (N child : children) {
+                    if (child != null && !isEmpty(child)) {
+                        long d = QTNode.distanceTo(getBounds(child), lng, lat);
+                        if (best.size() < k || d <= best.peek().distance) {
+                            nodes.offer(new NodeDistance<N>(child, d));
+                        }
+                    }
+                }
+            }
+        }
+
+        IGeoPoint[] res = new IGeoPoint[best.size()];
+        for (int i = res.length - 1; i >= 0; i--) {
+            res[i] = best.poll().point;
+        }
+        return new ArrayList<IGeoPoint>(Arrays.asList(res));
+    }
+
+    /**
+     * Offers a candidate point
+     *
+     * @param d
+     *            squared distance from the point to the location
+     * @return whether the point is one of the best candidates so far. Points at the same distance are not taken
+     *         either once this one was refused.
+     */
+    boolean offer(IGeoPoint p, long d) {
+        if (best.size() < k) {
+            best.offer(new PointDistance(p, d));
+        } else if (d < best.peek().distance) {
+            best.poll();
+            best.offer(new PointDistance(p, d));
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static class NodeDistance<N> {
+        final N node;
+        final long distance;
+
+        NodeDistance(N node, long distance) {
+            this.node = node;
+            this.distance = distance;
+        }
+    }
+
+    private static class PointDistance {
+        final IGeoPoint point;
+        final long distance;
+
+        PointDistance(IGeoPoint point, long distance) {
+            this.point = point;
+            this.distance = distance;
+        }
+    }
+}
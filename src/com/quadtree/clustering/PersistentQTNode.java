@@ -0,0 +1,455 @@
+package com.quadtree.clustering;
+
+import java.util.*;
+
+/**
+ * Persistent (immutable) quad-tree node. {@link #insert(IGeoPoint)} and {@link #remove(IGeoPoint)} never modify a
+ * tree, they copy the path from the root to the modified leaf and return a new root sharing all untouched subtrees
+ * with the old one.
+ * <p>
+ * Splits and merges follow the same rules as {@link QTNode}. Any root is a consistent snapshot, which can be queried
+ * from any number of threads without locking, see {@link ConcurrentQuadTree} for publishing new versions.
+ *
+ */
+public final class PersistentQTNode implements IQuadTree {
+    private static final IGeoPoint[] NO_POINTS = new IGeoPoint[0];
+
+    private final GeoRect boundBox;
+    /**
+     * Path of this node from the root, see {@link GeoCluster#getId()}
+     */
+    private final long id;
+    private final int maxPoints;
+
+    private final PersistentQTNode[] children;
+    private final IGeoPoint[] points;
+
+    private final int count;
+    private final long sumX, sumY;
+
+    /**
+     * Creates empty tree
+     *
+     * @param boundingBox
+     *            bounding box of the root node
+     * @param maxPoints
+     *            maximum number of points in a leaf-node
+     */
+    public PersistentQTNode(GeoRect boundingBox, int maxPoints) {
+        this(boundingBox, QTNode.ROOT_ID, maxPoints, null, NO_POINTS);
+    }
+
+    /**
+     * @param pts
+     *            collection of geopoint
+     * @param boundingBox
+     *            bounding box of the root node
+     * @param maxPoints
+     *            maximum number of points in a leaf-node
+     */
+    public PersistentQTNode(Collection<? extends IGeoPoint> pts, GeoRect boundingBox, int maxPoints) {
+        this(boundingBox, QTNode.ROOT_ID, maxPoints, split(boundingBox, QTNode.ROOT_ID, maxPoints, pts),
+                pts.toArray(new IGeoPoint[pts.size()]));
+    }
+
+    /**
+     * @param id
+     *            path of the node from the root
+     * @param children
+     *            subnodes, or <code>null</code> for a leaf
+     * @param points
+     *            points of a leaf, ignored if there are subnodes. Reordered to keep co-located points adjacent, as
+     *            they are reported as one weighted cluster.
+     */
+    private PersistentQTNode(GeoRect boundingBox, long id, int maxPoints, PersistentQTNode[] children,
+            IGeoPoint[] points) {
+        this.boundBox = boundingBox;
+        this.id = id;
+        this.maxPoints = maxPoints;
+        this.children = children;
+
+        int c = 0;
+        long x = 0, y = 0;
+        if (children == null) {
+            CoordinateMultiset.group(points, 0, points.length);
+            this.points = points;
+            for (IGeoPoint p : points) {
+                x += p.getLng();
+                y += p.getLat();
+            }
+            c = points.length;
+        } else {
+            this.points = null;
+            for (PersistentQTNode child : children) {
+                x += child.sumX;
+                y += child.sumY;
+                c += child.count;
+            }
+        }
+        count = c;
+        sumX = x;
+        sumY = y;
+    }
+
+    /**
+     * Creates node holding given points, split recursively as long as it has too many of them
+     */
+    private static PersistentQTNode create(GeoRect boundingBox, long id, int maxPoints,
+            Collection<? extends IGeoPoint> pts) {
+        return new PersistentQTNode(boundingBox, id, maxPoints, split(boundingBox, id, maxPoints, pts),
+                pts.toArray(new IGeoPoint[pts.size()]));
+    }
+
+    /**
+     * @return subnodes for given points, or <code>null</code> if they fit in a leaf
+     */
+    private static PersistentQTNode[] split(GeoRect boundBox, long id, int maxPoints,
+            Collection<? extends IGeoPoint> pts) {
+        if (pts.size() <= maxPoints || !QTNode.isSplittable(boundBox.bLx, boundBox.bLy, boundBox.tRx,
+                boundBox.tRy)) {
+            return null;
+        }
+
+        int cX = (boundBox.tRx + boundBox.bLx) / 2;
+        int cY = (boundBox.tRy + boundBox.bLy) / 2;
+        GeoRect[] boxes = new GeoRect[QTNode.DEFAULT_CHILDREN_COUNT];
+        boxes[0] = new GeoRect(boundBox.bLx, cY, cX, boundBox.tRy);
+        boxes[1] = new GeoRect(cX, cY, boundBox.tRx, boundBox.tRy);
+        boxes[2] = new GeoRect(cX, boundBox.bLy, boundBox.tRx, cY);
+        boxes[3] = new GeoRect(boundBox.bLx, boundBox.bLy, cX, cY);
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        List<IGeoPoint>[] childrenPoints = new ArrayList[QTNode.DEFAULT_CHILDREN_COUNT];
+        for (int i = 0; i < childrenPoints.length; i++) {
+            childrenPoints[i] = new ArrayList<IGeoPoint>();
+        }
+        for (IGeoPoint p : pts) {
+            childrenPoints[QTNode.quadrantOf(p.getLng(), p.getLat(), cX, cY)].add(p);
+        }
+
+        PersistentQTNode[] children = new PersistentQTNode[QTNode.DEFAULT_CHILDREN_COUNT];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = create(boxes[i], id << 2 | i, maxPoints, childrenPoints[i]);
+        }
+        return children;
+    }
+
+    private int quadrantIndex(int lng, int lat) {
+        return QTNode.quadrantOf(lng, lat, (boundBox.tRx + boundBox.bLx) / 2, (boundBox.tRy + boundBox.bLy) / 2);
+    }
+
+    /**
+     * @param p
+     *            point for insertion
+     * @return new version of this tree with given point inserted
+     */
+    public PersistentQTNode insert(IGeoPoint p) {
+        if (!boundBox.contains(p)) {
+            throw new IllegalArgumentException("Bounding box " + boundBox + " does not containt point: " + p);
+        }
+        return insert(p, p.getLng(), p.getLat());
+    }
+
+    private PersistentQTNode insert(IGeoPoint p, int lng, int lat) {
+        if (children == null) {
+            IGeoPoint[] pts = Arrays.copyOf(points, points.length + 1);
+            pts[points.length] = p;
+            return new PersistentQTNode(boundBox, id, maxPoints, split(boundBox, id, maxPoints, Arrays.asList(pts)),
+                    pts);
+        }
+
+        int i = quadrantIndex(lng, lat);
+        PersistentQTNode[] copy = children.clone();
+        copy[i] = children[i].insert(p, lng, lat);
+        return new PersistentQTNode(boundBox, id, maxPoints, copy, null);
+    }
+
+    /**
+     * @param p
+     *            point for removal, as defined by {@link Object#equals(Object)}
+     * @return new version of this tree without given point, or this tree if the point was not found
+     */
+    public PersistentQTNode remove(IGeoPoint p) {
+        if (!boundBox.contains(p)) {
+            return this;
+        }
+        return remove(p, p.getLng(), p.getLat());
+    }
+
+    private PersistentQTNode remove(IGeoPoint p, int lng, int lat) {
+        if (children == null) {
+            List<IGeoPoint> rest = new ArrayList<IGeoPoint>(Arrays.asList(points));
+            if (!rest.remove(p)) {
+                return this;
+            }
+            return new PersistentQTNode(boundBox, id, maxPoints, null, rest.toArray(new IGeoPoint[rest.size()]));
+        }
+
+        int i = quadrantIndex(lng, lat);
+        PersistentQTNode child = children[i].remove(p, lng, lat);
+        if (child == children[i]) {
+            return this;
+        }
+
+        if (count - children[i].count + child.count <= maxPoints) {
+            // merge subnodes back into a leaf
+            List<IGeoPoint> pts = new ArrayList<IGeoPoint>(maxPoints);
+            for (int j = 0; j < children.length; j++) {
+                (j == i ? child : children[j]).collectPoints(pts);
+            }
+            return new PersistentQTNode(boundBox, id, maxPoints, null, pts.toArray(new IGeoPoint[pts.size()]));
+        }
+
+        PersistentQTNode[] copy = children.clone();
+        copy[i] = child;
+        return new PersistentQTNode(boundBox, id, maxPoints, copy, null);
+    }
+
+    private void collectPoints(Collection<IGeoPoint> out) {
+        if (children == null) {
+            out.addAll(Arrays.asList(points));
+        } else {
+            for (PersistentQTNode child : children) {
+                child.collectPoints(out);
+            }
+        }
+    }
+
+    @Override
+    public Collection<? extends IGeoPoint> query(GeoRect range) {
+        List<PersistentQTNode> level = new ArrayList<PersistentQTNode>();
+        List<PersistentQTNode> buffer = new ArrayList<PersistentQTNode>();
+        List<PersistentQTNode> result = new ArrayList<PersistentQTNode>();
+        // whether nodes of the lists above lie entirely within the range
+        List<Boolean> levelContained = new ArrayList<Boolean>();
+        List<Boolean> bufferContained = new ArrayList<Boolean>();
+        List<Boolean> resultContained = new ArrayList<Boolean>();
+
+        level.add(this);
+        levelContained.add(range.contains(boundBox));
+        while (!level.isEmpty() && !Thread.currentThread().isInterrupted()) {
+            PersistentQTNode node = null;
+            for (int i = 0; i < level.size(); i++) {
+                node = level.get(i);
+                boolean contained = levelContained.get(i);
+                if (node.children == null) {
+                    result.add(node);
+                    resultContained.add(contained);
+                } else {
+                    for (PersistentQTNode child : node.children) {
+                        if (child.isEmpty()) {
+                            continue;
+                        }
+                        if (contained) {
+                            buffer.add(child);
+                            bufferContained.add(true);
+                        } else if (range.intersects(child.boundBox)) {
+                            buffer.add(child);
+                            bufferContained.add(range.contains(child.boundBox));
+                        }
+                    }
+                }
+            }
+
+            level.clear();
+            levelContained.clear();
+            if (range.getLngSpan() < node.boundBox.getLngSpan() && range.getLatSpan() < node.boundBox.getLatSpan()) {
+                List<PersistentQTNode> tmp = level;
+                level = buffer;
+                buffer = tmp;
+                List<Boolean> tmpContained = levelContained;
+                levelContained = bufferContained;
+                bufferContained = tmpContained;
+            } else {
+                result.addAll(buffer);
+                resultContained.addAll(bufferContained);
+                buffer.clear();
+                bufferContained.clear();
+            }
+        }
+
+        List<IGeoPoint> res = new ArrayList<IGeoPoint>();
+        for (int i = 0; i < result.size(); i++) {
+            result.get(i).addSuccessors(range, resultContained.get(i), res);
+        }
+        return res;
+    }
+
+    /**
+     * Adds successors (points or clusters) within given bounding box
+     * 
+     * @param contained
+     *            whether this node lies entirely within the range
+     */
+    private void addSuccessors(GeoRect rect, boolean contained, List<IGeoPoint> out) {
+        if (children == null) {
+            CoordinateMultiset.addGrouped(Arrays.asList(points), 0, points.length, boundBox, id,
+                    contained ? null : rect, out);
+            return;
+        }
+        for (PersistentQTNode child : children) {
+            if (child.count == 1) {
+                child.addSuccessors(rect, contained, out);
+            } else if (child.count > 1 && (contained || rect.intersects(child.boundBox))) {
+                out.add(child.getCluster());
+            }
+        }
+    }
+
+    /**
+     * @return cluster representation of this node
+     */
+    private GeoCluster getCluster() {
+        return new GeoCluster(id, (int) (sumX / count), (int) (sumY / count), count, new SubtreePoints(this));
+    }
+
+    /**
+     * Points of an immutable subtree, walked depth-first on demand
+     */
+    private static final class SubtreePoints extends SubtreeMembers<PersistentQTNode> {
+        SubtreePoints(PersistentQTNode node) {
+            super(node);
+        }
+
+        @Override
+        public int size() {
+            return root.count;
+        }
+
+        @Override
+        PersistentQTNode[] getChildren(PersistentQTNode node) {
+            return node.children;
+        }
+
+        @Override
+        int getCount(PersistentQTNode node) {
+            return node.count;
+        }
+
+        @Override
+        Iterator<IGeoPoint> getPoints(PersistentQTNode leaf, int offset) {
+            return Arrays.asList(leaf.points).listIterator(offset);
+        }
+    }
+
+    @Override
+    public int count(GeoRect range) {
+        if (isEmpty() || !range.intersects(boundBox)) {
+            return 0;
+        }
+        if (range.contains(boundBox)) {
+            return count;
+        }
+
+        int res = 0;
+        if (children == null) {
+            for (IGeoPoint p : points) {
+                if (range.contains(p)) {
+                    res++;
+                }
+            }
+        } else {
+            for (PersistentQTNode child : children) {
+                res += child.count(range);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void aggregate(GeoRect range, IAggregateVisitor visitor) {
+        if (isEmpty() || !range.intersects(boundBox)) {
+            return;
+        }
+        if (range.contains(boundBox)) {
+            visitor.visitNode(count, sumX, sumY);
+            return;
+        }
+
+        if (children == null) {
+            for (IGeoPoint p : points) {
+                if (range.contains(p)) {
+                    visitor.visitPoint(p);
+                }
+            }
+        } else {
+            for (PersistentQTNode child : children) {
+                child.aggregate(range, visitor);
+            }
+        }
+    }
+
+    @Override
+    public Collection<IGeoPoint> getNearestPoints(int atLeast, IGeoPoint where) {
+        Collection<IGeoPoint> result = new ArrayList<IGeoPoint>(atLeast);
+        PersistentQTNode node = boundBox.contains(where) ? findNodeWithNPoints(atLeast, where) : null;
+        if (node != null) {
+            node.collectPoints(result);
+        }
+        return result;
+    }
+
+    private PersistentQTNode findNodeWithNPoints(int n, IGeoPoint point) {
+        if (children == null) {
+            return null;
+        }
+        PersistentQTNode res = children[quadrantIndex(point.getLng(), point.getLat())];
+        if (res.count > n) {
+            PersistentQTNode subRes = res.findNodeWithNPoints(n, point);
+            if (subRes != null && subRes.count >= n) {
+                res = subRes;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Same search as {@link QTNode#nearest(int, int, int)}
+     */
+    @Override
+    public List<IGeoPoint> nearest(int k, int lat, int lng) {
+        return new NearestSearch<PersistentQTNode>(k, lat, lng) {
+            @Override
+            GeoRect getBounds(PersistentQTNode node) {
+                return node.boundBox;
+            }
+
+            @Override
+            PersistentQTNode[] getChildren(PersistentQTNode node) {
+                return node.children;
+            }
+
+            @Override
+            boolean isEmpty(PersistentQTNode node) {
+                return node.isEmpty();
+            }
+
+            @Override
+            void visitLeaf(PersistentQTNode leaf) {
+                for (IGeoPoint p : leaf.points) {
+                    offer(p, QTNode.distance(p.getLng(), p.getLat(), lng, lat));
+                }
+            }
+        }.search(this);
+    }
+
+    public GeoRect getBoundBox() {
+        return boundBox;
+    }
+
+    /**
+     * @return number of points in this tree
+     */
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "PersistentQTNode[bBox=" + boundBox + ";points=" + count + "]";
+    }
+}
@@ -0,0 +1,61 @@
+package com.quadtree.clustering;
+
+import java.util.Collection;
+
+/**
+ * Available quad-tree implementations. All engines build the same tree shape and answer queries identically, so they
+ * can be swapped (or A/B tested) at construction time.
+ *
+ */
+public enum QTEngine {
+    /**
+     * Object graph of {@link QTNode}s, supports incremental updates
+     */
+    NODES {
+        @Override
+        public IQuadTree build(Collection<? extends IGeoPoint> pts, GeoRect boundingBox, int maxPoints) {
+            return new QTNode(pts, boundingBox, maxPoints);
+        }
+    },
+
+    /**
+     * Read-only {@link FlatQuadTree} stored in primitive arrays
+     */
+    FLAT {
+        @Override
+        public IQuadTree build(Collection<? extends IGeoPoint> pts, GeoRect boundingBox, int maxPoints) {
+            return new FlatQuadTree(pts, boundingBox, maxPoints);
+        }
+    },
+
+    /**
+     * {@link ConcurrentQuadTree} of immutable {@link PersistentQTNode}s, supports updates concurrent with lock-free
+     * queries
+     */
+    CONCURRENT {
+        @Override
+        public IQuadTree build(Collection<? extends IGeoPoint> pts, GeoRect boundingBox, int maxPoints) {
+            return new ConcurrentQuadTree(pts, boundingBox, maxPoints);
+        }
+    };
+
+    /**
+     * Constructs tree with the whole world in it's root from given collection of points.
+     *
+     * @param pts
+     *            points to construct quad-tree
+     */
+    public IQuadTree build(Collection<? extends IGeoPoint> pts) {
+        return build(pts, QTNode.WHOLE_WORLD, QTNode.DEFAULT_POINTS_COUNT_THRESHOLD);
+    }
+
+    /**
+     * @param pts
+     *            collection of geopoint
+     * @param boundingBox
+     *            bounding box of the root node
+     * @param maxPoints
+     *            maximum number of points in a leaf-node
+     */
+    public abstract IQuadTree build(Collection<? extends IGeoPoint> pts, GeoRect boundingBox, int maxPoints);
+}
@@ -1,37 +1,66 @@
 package com.quadtree.clustering;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * @author colriot
  * @since Jul 9, 2012
  * 
  */
-public class QTNode {
+public class QTNode implements IQuadTree {
     private static final String TAG = "QTNode";
 
     public static final int DEFAULT_CHILDREN_COUNT = 4;
 
     public static final int DEFAULT_POINTS_COUNT_THRESHOLD = 6;
+    public static final int DEFAULT_SEQUENTIAL_CUTOFF = 10000;
+    public static final int DEFAULT_CLUSTER_CELL_PX = 64;
     private static final int MAX_PARENT_NODES_COUNT = 4;
 
-    private static final int MIN_COORD_SPAN = 500;
-
-    public static final GeoRect WHOLE_WORLD = new GeoRect(new GeoPointInternal(-180000000, -90000000),
-            new GeoPointInternal(180000000, 90000000));
+    static final int MIN_COORD_SPAN = 500;
+    static final long ROOT_ID = 1;
 
+    public static final GeoRect WHOLE_WORLD = new GeoRect(-180000000, -90000000, 180000000, 90000000);
 
     private QTNode[] children;
-    private Collection<IGeoPoint> points = new ArrayList<IGeoPoint>();
+    private CoordinateMultiset points = new CoordinateMultiset();
 
     private GeoRect boundBox;
+    /**
+     * Cell split into the children (or holding the points of a leaf). Differs from the bound box only in compressed
+     * mode, where a chain of nodes with a single non-empty child is collapsed into its top node: then it is the
+     * deepest cell of the chain and {@link #skipped} is the number of levels between them.
+     */
+    private GeoRect splitBox;
+    private int skipped;
 
     private long avgX, avgY;
     private int count;
 
+    /**
+     * Path of this node from the root, see {@link GeoCluster#getId()}
+     */
+    private long id = ROOT_ID;
+
+    /**
+     * Cluster representation of the top of the node, dropped on every change of the node and rebuilt by
+     * {@link #getCluster(int)} on demand
+     */
     private GeoCluster cluster;
+    /**
+     * Clusters of the levels below the top of the compressed chain, by level minus one. Queries at different zooms
+     * report different levels of the same chain, so each level keeps its own cluster.
+     */
+    private GeoCluster[] chainClusters;
+    /**
+     * Number of changes of this node or its subtree, member views of reported clusters fail once it moves on
+     */
+    private int modCount;
 
     private final int MAX_POINTS;
+    private final boolean compressed;
 
     /**
      * Constructs tree with the whole world in it's root from given collection of points.
@@ -50,8 +79,23 @@ public class QTNode {
      *            maximum number of points in a leaf-node
      */
     public QTNode(GeoRect boundingBox, int maxPoints) {
+        this(boundingBox, maxPoints, false);
+    }
+
+    /**
+     * @param boundingBox
+     *            bounding box of constructed node
+     * @param maxPoints
+     *            maximum number of points in a leaf-node
+     * @param compressed
+     *            whether chains of nodes with a single non-empty child are collapsed into one node, see
+     *            {@link #QTNode(Collection, GeoRect, int, boolean)}
+     */
+    public QTNode(GeoRect boundingBox, int maxPoints, boolean compressed) {
         boundBox = boundingBox;
+        splitBox = boundingBox;
         MAX_POINTS = maxPoints;
+        this.compressed = compressed;
     }
 
     /**
@@ -75,10 +119,70 @@ public class QTNode {
      *            maximum number of points in a leaf-node
      */
     public QTNode(Collection<? extends IGeoPoint> pts, GeoRect boundingBox, int maxPoints) {
-        boundBox = boundingBox;
-        MAX_POINTS = maxPoints;
+        this(pts, boundingBox, maxPoints, false);
+    }
+
+    /**
+     * Path-compressed quad-tree constructor. Dense hotspots produce long chains of nodes with a single non-empty child
+     * (each with three empty siblings), in compressed mode such a chain is kept as one node recording the number of
+     * skipped levels and the deepest cell. Queries walk skipped levels virtually, so results, zoom levels and
+     * {@link #freeze()} are the same as for an uncompressed tree.
+     * <p>
+     * Compression is not applied to cells crossing 180 meridian.
+     * 
+     * @param pts
+     *            collection of geopoint
+     * @param boundingBox
+     *            bounding box of constructed node
+     * @param maxPoints
+     *            maximum number of points in a leaf-node
+     * @param compressed
+     *            whether chains of nodes with a single non-empty child are collapsed into one node
+     */
+    public QTNode(Collection<? extends IGeoPoint> pts, GeoRect boundingBox, int maxPoints, boolean compressed) {
+        this(boundingBox, maxPoints, compressed);
+
+        if (boundingBox.crossesAntimeridian) {
+            // 180 meridian inside the root, Morton keys are undefined
+            populate(new CoordinateMultiset(pts));
+        } else {
+            MortonOrder order = new MortonOrder(pts, boundingBox);
+            load(order, 0, order.size(), 0, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Parallel quad-tree constructor. Builds exactly the same tree as
+     * {@link #QTNode(Collection, GeoRect, int)}, independent subtrees are built concurrently in given pool.
+     * 
+     * @param pts
+     *            collection of geopoint
+     * @param boundingBox
+     *            bounding box of constructed node
+     * @param maxPoints
+     *            maximum number of points in a leaf-node
+     * @param pool
+     *            pool to build in, {@link ForkJoinPool#commonPool()} if <code>null</code>
+     * @param sequentialCutoff
+     *            subtrees with fewer points are built sequentially, see {@link #DEFAULT_SEQUENTIAL_CUTOFF}. Must be
+     *            positive.
+     */
+    public QTNode(Collection<? extends IGeoPoint> pts, GeoRect boundingBox, int maxPoints, ForkJoinPool pool,
+            int sequentialCutoff) {
+        this(boundingBox, maxPoints, false);
+        if (sequentialCutoff <= 0) {
+            throw new IllegalArgumentException("Sequential cutoff must be positive: " + sequentialCutoff);
+        }
 
-        populate(pts);
+        if (boundingBox.crossesAntimeridian) {
+            populate(new CoordinateMultiset(pts));
+        } else {
+            if (pool == null) {
+                pool = ForkJoinPool.commonPool();
+            }
+            MortonOrder order = new MortonOrder(pts, boundingBox, pool, sequentialCutoff);
+            pool.invoke(new LoadTask(this, order, 0, order.size(), 0, sequentialCutoff));
+        }
     }
 
     public void insertAll(Collection<? extends IGeoPoint> points) {
@@ -97,217 +201,1438 @@ public class QTNode {
         if (!boundBox.contains(p)) {
             throw new IllegalArgumentException("Bounding box " + boundBox + " does not containt point: " + p);
         }
+        insert(p, p.getLng(), p.getLat());
+    }
+
+    /**
+     * Inserts given point at given coordinates, which may differ from the ones the point reports
+     */
+    private void insert(IGeoPoint p, int lng, int lat) {
+        if (skipped > 0 && !isOnChain(lng, lat)) {
+            expand(lng, lat);
+        }
 
-        avgX += p.getLng();
-        avgY += p.getLat();
+        avgX += lng;
+        avgY += lat;
         count++;
 
-        updateCluster();
+        invalidateCluster();
 
         if (children == null) {
-            points.add(p);
-            if (points.size() > MAX_POINTS) {
+            points.add(p, lng, lat);
+            if (points.size() > MAX_POINTS && isSplittable(splitBox.bLx, splitBox.bLy, splitBox.tRx, splitBox.tRy)) {
                 split();
             }
+            return;
+        }
+
+        getOrCreateChild(getQuadrantIndex(lng, lat)).insert(p, lng, lat);
+    }
+
+    /**
+     * Moves given point to a new location. Only coordinate sums are updated while the old and the new locations share
+     * a node, below their lowest common ancestor the point is removed and inserted again.
+     * <p>
+     * Point must still report its old coordinates during this call, the caller updates it afterwards.
+     * 
+     * @param p
+     *            point to move
+     * @param newLat
+     *            new latitude
+     * @param newLng
+     *            new longitude
+     * @return <code>true</code> if the point was found and moved
+     */
+    public boolean move(IGeoPoint p, int newLat, int newLng) {
+        if (!boundBox.contains(newLng, newLat)) {
+            throw new IllegalArgumentException("Bounding box " + boundBox + " does not containt point: ("
+                    + newLng + "," + newLat + ")");
+        }
+        if (!boundBox.contains(p)) {
+            return false;
+        }
+        return move(p, p.getLng(), p.getLat(), newLng, newLat);
+    }
+
+    private boolean move(IGeoPoint p, int oldLng, int oldLat, int newLng, int newLat) {
+        if (skipped > 0 && !isOnChain(newLng, newLat)) {
+            // new location leaves the compressed chain, this node is the lowest common ancestor
+            if (!remove(p, oldLng, oldLat)) {
+                return false;
+            }
+            insert(p, newLng, newLat);
+            return true;
+        }
+
+        if (children == null) {
+            if (!points.remove(p, oldLng, oldLat)) {
+                return false;
+            }
+            points.add(p, newLng, newLat);
         } else {
-            for (QTNode child : children) {
-                if (child.boundBox.contains(p)) {
-                    child.insert(p);
+            int oldIndex = getQuadrantIndex(oldLng, oldLat);
+            int newIndex = getQuadrantIndex(newLng, newLat);
+            if (children[oldIndex] == null) {
+                return false;
+            }
+            if (oldIndex == newIndex) {
+                if (!children[oldIndex].move(p, oldLng, oldLat, newLng, newLat)) {
+                    return false;
                 }
+            } else {
+                // lowest common ancestor of both locations
+                if (!removeFromChild(oldIndex, p, oldLng, oldLat)) {
+                    return false;
+                }
+                getOrCreateChild(newIndex).insert(p, newLng, newLat);
+                compressChain();
             }
         }
+
+        avgX += newLng - oldLng;
+        avgY += newLat - oldLat;
+        invalidateCluster();
+        return true;
     }
 
     /**
-     * Splits current node into four subnodes
+     * Removes given point (as defined by {@link Object#equals(Object)}) from quad-tree. Subtrees left with no more
+     * than maximum number of points are merged back into a leaf.
+     * 
+     * @param p
+     *            point for removal
+     * @return <code>true</code> if the point was found and removed
      */
-    private void split() {
-        int cX = (boundBox.tR.x + boundBox.bL.x) / 2;
-        int cY = (boundBox.tR.y + boundBox.bL.y) / 2;
-        split(cX, cY);
+    public boolean remove(IGeoPoint p) {
+        if (!boundBox.contains(p)) {
+            return false;
+        }
+        return remove(p, p.getLng(), p.getLat());
     }
 
-    private void split(int cX, int cY) {
-        children = new QTNode[DEFAULT_CHILDREN_COUNT];
+    /**
+     * Removes given point stored at given coordinates
+     */
+    private boolean remove(IGeoPoint p, int lng, int lat) {
+        boolean removed = false;
+        if (children == null) {
+            removed = points.remove(p, lng, lat);
+        } else {
+            removed = removeFromChild(getQuadrantIndex(lng, lat), p, lng, lat);
+        }
 
-        children[0] = new QTNode(new GeoRect(boundBox.bL.x, cY, cX, boundBox.tR.y), MAX_POINTS);
-        children[1] = new QTNode(new GeoRect(cX, cY, boundBox.tR.x, boundBox.tR.y), MAX_POINTS);
-        children[2] = new QTNode(new GeoRect(cX, boundBox.bL.y, boundBox.tR.x, cY), MAX_POINTS);
-        children[3] = new QTNode(new GeoRect(boundBox.bL.x, boundBox.bL.y, cX, cY), MAX_POINTS);
+        if (removed) {
+            avgX -= lng;
+            avgY -= lat;
+            count--;
 
-        @SuppressWarnings("unchecked")
-        List<IGeoPoint>[] childrenPoints = new ArrayList[DEFAULT_CHILDREN_COUNT];
-        for (int i = 0; i < childrenPoints.length; i++) {
-            childrenPoints[i] = new ArrayList<IGeoPoint>();
+            if ((children != null || skipped > 0) && count <= MAX_POINTS) {
+                collapse();
+            } else {
+                compressChain();
+            }
+            invalidateCluster();
         }
+        return removed;
+    }
 
-        for (IGeoPoint p : points) {
-            childrenPoints[getQuadrantIndex(p)].add(p);
+    /**
+     * Removes given point from the child with given index, dropping the child if it is left empty
+     */
+    private boolean removeFromChild(int index, IGeoPoint p, int lng, int lat) {
+        QTNode child = children[index];
+        if (child == null || !child.remove(p, lng, lat)) {
+            return false;
         }
+        if (child.isEmpty()) {
+            children[index] = null;
+        }
+        return true;
+    }
 
-        children[0].populate(childrenPoints[0]);
-        children[1].populate(childrenPoints[1]);
-        children[2].populate(childrenPoints[2]);
-        children[3].populate(childrenPoints[3]);
-
-        points = null;
+    /**
+     * Inserts first <code>n</code> given points at given coordinates in one top-down pass. Points are grouped by
+     * quadrant on every level, so each affected node is visited and its sums updated once per batch.
+     */
+    void insertBatch(IGeoPoint[] pts, int[] lngs, int[] lats, int n) {
+        insertBatch(pts, lngs, lats, identity(n), new int[n], 0, n);
     }
 
-    @SuppressWarnings("unchecked")
-    private void populate(Collection<? extends IGeoPoint> pts) {
-        points = (Collection<IGeoPoint>) pts;
-        for (IGeoPoint p : points) {
-            avgX += p.getLng();
-            avgY += p.getLat();
+    private void insertBatch(IGeoPoint[] pts, int[] lngs, int[] lats, int[] order, int[] quadrants, int from,
+            int to) {
+        for (int i = from; i < to && skipped > 0; i++) {
+            if (!isOnChain(lngs[order[i]], lats[order[i]])) {
+                expand(lngs[order[i]], lats[order[i]]);
+            }
         }
-        count = points.size();
+        for (int i = from; i < to; i++) {
+            avgX += lngs[order[i]];
+            avgY += lats[order[i]];
+        }
+        count += to - from;
+        invalidateCluster();
 
-        updateCluster();
-        if (points.size() > MAX_POINTS
-                && (boundBox.getLatSpan() > MIN_COORD_SPAN ||
-                    boundBox.getLngSpan() > MIN_COORD_SPAN)) {
+        if (children == null) {
+            if (points.size() + to - from <= MAX_POINTS
+                    || !isSplittable(splitBox.bLx, splitBox.bLy, splitBox.tRx, splitBox.tRy)) {
+                for (int i = from; i < to; i++) {
+                    points.add(pts[order[i]], lngs[order[i]], lats[order[i]]);
+                }
+                return;
+            }
+            // batch points may not report their new coordinates yet, so only the stored ones are split
             split();
         }
-    }
 
-    private int getQuadrantIndex(IGeoPoint p) {
+        int[] bounds = partition(lngs, lats, order, quadrants, from, to);
         for (int i = 0; i < children.length; i++) {
-            if (children[i].boundBox.contains(p)) {
-                return i;
+            if (bounds[i] < bounds[i + 1]) {
+                getOrCreateChild(i).insertBatch(pts, lngs, lats, order, quadrants, bounds[i], bounds[i + 1]);
             }
         }
-        return 0;
+        compressChain();
     }
 
-    public Collection<IGeoPoint> getNearestPoints(int atLeast, IGeoPoint where) {
-        Collection<IGeoPoint> result = new ArrayList<IGeoPoint>(atLeast);
-        QTNode node = findNodeWithNPoints(atLeast, where);
-        if (node != null) {
-            node.collectPoints(result);
-        }
-        return result;
+    /**
+     * Removes first <code>n</code> given points stored at given coordinates in one top-down pass, see
+     * {@link #insertBatch(IGeoPoint[], int[], int[], int)}
+     * 
+     * @return flags of the points found and removed
+     */
+    boolean[] removeBatch(IGeoPoint[] pts, int[] lngs, int[] lats, int n) {
+        boolean[] removed = new boolean[n];
+        removeBatch(pts, lngs, lats, identity(n), new int[n], removed, 0, n);
+        return removed;
     }
 
-    private void collectPoints(Collection<IGeoPoint> out) {
-        if (points != null) {
-            out.addAll(points);
+    private int removeBatch(IGeoPoint[] pts, int[] lngs, int[] lats, int[] order, int[] quadrants, boolean[] removed,
+            int from, int to) {
+        int removedCount = 0;
+        if (children == null) {
+            for (int i = from; i < to; i++) {
+                if (points.remove(pts[order[i]], lngs[order[i]], lats[order[i]])) {
+                    removed[order[i]] = true;
+                }
+            }
+        } else {
+            int[] bounds = partition(lngs, lats, order, quadrants, from, to);
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] != null && bounds[i] < bounds[i + 1]) {
+                    children[i].removeBatch(pts, lngs, lats, order, quadrants, removed, bounds[i], bounds[i + 1]);
+                    if (children[i].isEmpty()) {
+                        children[i] = null;
+                    }
+                }
+            }
         }
-        if (children != null) {
-            for (QTNode child : children) {
-                child.collectPoints(out);
+
+        for (int i = from; i < to; i++) {
+            if (removed[order[i]]) {
+                avgX -= lngs[order[i]];
+                avgY -= lats[order[i]];
+                removedCount++;
+            }
+        }
+        if (removedCount > 0) {
+            count -= removedCount;
+            if ((children != null || skipped > 0) && count <= MAX_POINTS) {
+                collapse();
+            } else {
+                compressChain();
             }
+            invalidateCluster();
         }
+        return removedCount;
     }
 
-    private QTNode findNodeWithNPoints(int count, IGeoPoint point) {
-        if (children != null) {
-            for (int i = 0; i < children.length; i++) {
-                if (children[i].boundBox.contains(point)) {
-                    QTNode res = children[i];
-                    if (res.count > count) {
-                        QTNode subRes = res.findNodeWithNPoints(count, point);
-                        if (subRes != null && subRes.count >= count) {
-                            res = subRes;
-                        }
-                    }
-                    return res;
+    private static int[] identity(int n) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        return order;
+    }
+
+    /**
+     * Reorders batch positions <code>[from, to)</code> by the subnode holding their coordinates
+     * 
+     * @return bounds of the subnode groups, group <code>i</code> is <code>[bounds[i], bounds[i + 1])</code>
+     */
+    private int[] partition(int[] lngs, int[] lats, int[] order, int[] quadrants, int from, int to) {
+        for (int i = from; i < to; i++) {
+            quadrants[i] = getQuadrantIndex(lngs[order[i]], lats[order[i]]);
+        }
+
+        int[] bounds = new int[DEFAULT_CHILDREN_COUNT + 1];
+        int next = from;
+        for (int q = 0; q < DEFAULT_CHILDREN_COUNT - 1; q++) {
+            bounds[q] = next;
+            for (int i = next; i < to; i++) {
+                if (quadrants[i] == q) {
+                    int tmp = order[i];
+                    order[i] = order[next];
+                    order[next] = tmp;
+                    quadrants[i] = quadrants[next];
+                    quadrants[next] = q;
+                    next++;
                 }
             }
         }
-        return null;
+        bounds[DEFAULT_CHILDREN_COUNT - 1] = next;
+        bounds[DEFAULT_CHILDREN_COUNT] = to;
+        return bounds;
     }
 
-    public Collection<? extends IGeoPoint> query(GeoRect range) {
-        Queue<QTNode> queue = new LinkedList<QTNode>();
-        List<QTNode> result = new ArrayList<QTNode>();
-        List<QTNode> buffer = new ArrayList<QTNode>();
+    /**
+     * Merges subnodes back into this node, which becomes a leaf
+     */
+    private void collapse() {
+        CoordinateMultiset pts = new CoordinateMultiset();
+        collectEntries(pts);
+        children = null;
+        points = pts;
+        invalidateCluster();
+        splitBox = boundBox;
+        skipped = 0;
+    }
 
-        queue.offer(this);
+    /**
+     * Splits current node into four subnodes. In compressed mode levels where all points fall into the same quadrant
+     * are skipped, leaving a leaf with a skipped chain if the points never diverge down to an unsplittable cell.
+     */
+    private void split() {
+        if (compressed && points.size() > MAX_POINTS && !splitBox.crossesAntimeridian) {
+            int[] cell = { splitBox.bLx, splitBox.bLy, splitBox.tRx, splitBox.tRy };
+            int levels = 0;
+            while (isSplittable(cell[0], cell[1], cell[2], cell[3])) {
+                int q = getSingleQuadrant((cell[2] + cell[0]) / 2, (cell[3] + cell[1]) / 2);
+                if (q < 0) {
+                    break;
+                }
+                toQuadrant(cell, q);
+                levels++;
+            }
+            if (levels > 0) {
+                skipped += levels;
+                splitBox = new GeoRect(cell[0], cell[1], cell[2], cell[3]);
+                if (!isSplittable(cell[0], cell[1], cell[2], cell[3])) {
+                    return;
+                }
+            }
+        }
+        createChildren();
 
-        while (!queue.isEmpty() && !Thread.currentThread().isInterrupted()) {
-            QTNode node = queue.poll();
+        CoordinateMultiset[] childrenPoints = new CoordinateMultiset[DEFAULT_CHILDREN_COUNT];
+        for (int i = 0; i < childrenPoints.length; i++) {
+            childrenPoints[i] = new CoordinateMultiset();
+        }
 
-            if (node.children == null) {
-                result.add(node);
-            } else {
-                for (QTNode child : node.children) {
-                    if (!child.isEmpty() && range.intersects(child.boundBox)) {
-                        buffer.add(child);
-                    }
-                }
+        for (int entry = 0; entry < points.entriesCount(); entry++) {
+            int lng = points.getLng(entry);
+            int lat = points.getLat(entry);
+            CoordinateMultiset childPoints = childrenPoints[getQuadrantIndex(lng, lat)];
+            for (int i = 0; i < points.getCount(entry); i++) {
+                childPoints.add(points.getPoint(entry, i), lng, lat);
             }
-            if (!queue.isEmpty()) {
-                continue;
+        }
+
+        for (int i = 0; i < childrenPoints.length; i++) {
+            if (!childrenPoints[i].isEmpty()) {
+                getOrCreateChild(i).populate(childrenPoints[i]);
             }
+        }
 
-            if (range.getLngSpan() < node.boundBox.getLngSpan() && range.getLatSpan() < node.boundBox.getLatSpan()) {
-                queue.addAll(buffer);
-            } else {
-                result.addAll(buffer);
+        points = null;
+    }
+
+    /**
+     * @return quadrant holding all points of this leaf for given centre, or -1 if they are spread over several ones
+     */
+    private int getSingleQuadrant(int cX, int cY) {
+        int q = quadrantOf(points.getLng(0), points.getLat(0), cX, cY);
+        for (int entry = 1; entry < points.entriesCount(); entry++) {
+            if (quadrantOf(points.getLng(entry), points.getLat(entry), cX, cY) != q) {
+                return -1;
             }
-            buffer.clear();
         }
+        return q;
+    }
 
-        List<IGeoPoint> res = new ArrayList<IGeoPoint>();
-        for (QTNode node : result) {
-            res.addAll(node.getSuccessors(range));
+    /**
+     * Makes this node internal. Children are created on demand, quadrants without points have no child at all.
+     */
+    private void createChildren() {
+        children = new QTNode[DEFAULT_CHILDREN_COUNT];
+    }
+
+    private QTNode getOrCreateChild(int q) {
+        QTNode child = children[q];
+        if (child == null) {
+            child = new QTNode(getQuadrantBox(splitBox, q), MAX_POINTS, compressed);
+            child.id = getId(skipped) << 2 | q;
+            children[q] = child;
         }
+        return child;
+    }
 
-        return res;
+    /**
+     * @return bounds of the quadrant of given cell with given index
+     */
+    static GeoRect getQuadrantBox(GeoRect cell, int q) {
+        int cX = (cell.tRx + cell.bLx) / 2;
+        int cY = (cell.tRy + cell.bLy) / 2;
+        switch (q) {
+        case 0:
+            return new GeoRect(cell.bLx, cY, cX, cell.tRy);
+        case 1:
+            return new GeoRect(cX, cY, cell.tRx, cell.tRy);
+        case 2:
+            return new GeoRect(cX, cell.bLy, cell.tRx, cY);
+        default:
+            return new GeoRect(cell.bLx, cell.bLy, cX, cY);
+        }
     }
 
     /**
-     * @return successors (points or clusters) within given bounding box
+     * Collapses a chain starting at this node: if a single child is left non-empty, this node takes its place in the
+     * tree, recording the skipped level
      */
-    private Collection<? extends IGeoPoint> getSuccessors(GeoRect rect) {
-        List<IGeoPoint> res = new ArrayList<IGeoPoint>();
-        if (children != null) {
-            for (QTNode cluster : children) {
-                if (!cluster.isEmpty() && rect.intersects(cluster.boundBox)) {
-                    if (cluster.count == 1) {
-                        res.addAll(cluster.points);
-                    } else {
-                        res.add(cluster.getCluster());
-                    }
+    private void compressChain() {
+        if (!compressed || children == null || splitBox.crossesAntimeridian) {
+            return;
+        }
+        QTNode single = null;
+        for (QTNode child : children) {
+            if (child != null) {
+                if (single != null) {
+                    return;
                 }
+                single = child;
             }
+        }
+        if (single == null) {
+            return;
+        }
+        skipped += 1 + single.skipped;
+        splitBox = single.splitBox;
+        children = single.children;
+        points = single.points;
+        invalidateCluster();
+        // the absorbed node is detached and sees no more changes, fail its reported members now
+        single.invalidateCluster();
+    }
+
+    /**
+     * Breaks the compressed chain of this node at the level where given location leaves it, the rest of the chain
+     * becomes a subnode next to the one for the location
+     */
+    private void expand(int lng, int lat) {
+        int[] cell = new int[4];
+        int level = descendChain(lng, lat, skipped, cell);
+        GeoRect common = level == 0 ? boundBox : new GeoRect(cell[0], cell[1], cell[2], cell[3]);
+        int q = quadrantOf((splitBox.tRx + splitBox.bLx) / 2, (splitBox.tRy + splitBox.bLy) / 2,
+                (cell[2] + cell[0]) / 2, (cell[3] + cell[1]) / 2);
+
+        QTNode rest;
+        long restId = getId(level + 1);
+        if (level + 1 == skipped) {
+            rest = new QTNode(splitBox, MAX_POINTS, true);
         } else {
-            res.addAll(points);
+            toQuadrant(cell, q);
+            rest = new QTNode(new GeoRect(cell[0], cell[1], cell[2], cell[3]), MAX_POINTS, true);
+            rest.splitBox = splitBox;
+            rest.skipped = skipped - level - 1;
         }
-        return res;
+        rest.id = restId;
+        rest.children = children;
+        rest.points = points;
+        rest.avgX = avgX;
+        rest.avgY = avgY;
+        rest.count = count;
+
+        invalidateCluster();
+        skipped = level;
+        splitBox = common;
+        points = null;
+        createChildren();
+        children[q] = rest;
     }
 
-    public boolean isEmpty() {
-        return children == null && points.isEmpty();
+    /**
+     * @return whether given location (within the bound box) follows the compressed chain down to the split cell.
+     *         Borders of the split cell are centre lines of the chain or borders of the bound box, so the half-open
+     *         routing reduces to comparisons with them.
+     */
+    private boolean isOnChain(int lng, int lat) {
+        return lng >= splitBox.bLx && (lng < splitBox.tRx || splitBox.tRx == boundBox.tRx)
+                && lat >= splitBox.bLy && (lat < splitBox.tRy || splitBox.tRy == boundBox.tRy);
     }
 
     /**
-     * @return cluster representation of current node
+     * Walks the compressed chain from the bound box down at most given number of levels, while given location stays
+     * on it
+     * 
+     * @param cell
+     *            receives bounds <code>{bLx, bLy, tRx, tRy}</code> of the cell reached
+     * @return number of levels walked
+     */
+    private int descendChain(int lng, int lat, int levels, int[] cell) {
+        cell[0] = boundBox.bLx;
+        cell[1] = boundBox.bLy;
+        cell[2] = boundBox.tRx;
+        cell[3] = boundBox.tRy;
+        int sX = (splitBox.tRx + splitBox.bLx) / 2;
+        int sY = (splitBox.tRy + splitBox.bLy) / 2;
+        for (int level = 0; level < levels; level++) {
+            int cX = (cell[2] + cell[0]) / 2;
+            int cY = (cell[3] + cell[1]) / 2;
+            int q = quadrantOf(sX, sY, cX, cY);
+            if (quadrantOf(lng, lat, cX, cY) != q) {
+                return level;
+            }
+            toQuadrant(cell, q);
+        }
+        return levels;
+    }
+
+    /**
+     * Writes bounds of the cell given number of levels down the compressed chain into given array
+     */
+    private void getChainCell(int offset, int[] cell) {
+        descendChain((splitBox.tRx + splitBox.bLx) / 2, (splitBox.tRy + splitBox.bLy) / 2, offset, cell);
+    }
+
+    /**
+     * @return path ID of the cell given number of levels down the compressed chain
      */
-    private GeoCluster getCluster() {
-        return cluster;
+    private long getId(int offset) {
+        return descendPath(id, boundBox.bLx, boundBox.bLy, boundBox.tRx, boundBox.tRy,
+                (splitBox.tRx + splitBox.bLx) / 2, (splitBox.tRy + splitBox.bLy) / 2, offset);
     }
 
-    private void updateCluster() {
-        if (count > 0) {
-            int lat = (int) (avgY / count);
-            int lng = (int) (avgX / count);
-            if (cluster == null) {
-                cluster = new GeoCluster(lng, lat, Collections.unmodifiableCollection(points));
+    /**
+     * @return path ID of the cell holding given coordinates given number of levels below the cell with given path ID
+     *         and bounds
+     */
+    static long descendPath(long id, int l, int b, int r, int t, int lng, int lat, int levels) {
+        for (int level = 0; level < levels; level++) {
+            int cX = (r + l) / 2;
+            int cY = (t + b) / 2;
+            int q = quadrantOf(lng, lat, cX, cY);
+            id = id << 2 | q;
+
+            if (q == 0 || q == 3) {
+                r = cX;
+            } else {
+                l = cX;
+            }
+            if (q == 0 || q == 1) {
+                b = cY;
             } else {
-                cluster.move(lat, lng);
+                t = cY;
             }
         }
+        return id;
     }
 
-    @Override
-    public String toString() {
-        StringBuilder sb = new StringBuilder("Node[\n\tbBox: ").append(boundBox).append("\n\t");
+    /**
+     * @return ID of the points at given coordinates within the cell with given path ID and bounds: their path down to
+     *         {@link MortonOrder#MAX_DEPTH}, which is deeper than any node
+     */
+    static long getColocatedId(long id, GeoRect cell, int lng, int lat) {
+        return descendPath(id, cell.bLx, cell.bLy, cell.tRx, cell.tRy, lng, lat,
+                MortonOrder.MAX_DEPTH - getPathDepth(id));
+    }
 
-        if (children != null) {
-            sb.append("Children:\n");
-            for (QTNode child : children) {
-                sb.append(child).append('\n');
+    /**
+     * @return number of levels between the root and the cell with given path ID
+     */
+    static int getPathDepth(long id) {
+        return (Long.SIZE - 1 - Long.numberOfLeadingZeros(id)) / 2;
+    }
+
+    /**
+     * Narrows given cell bounds <code>{bLx, bLy, tRx, tRy}</code> to its quadrant with given index
+     */
+    static void toQuadrant(int[] cell, int q) {
+        int cX = (cell[2] + cell[0]) / 2;
+        int cY = (cell[3] + cell[1]) / 2;
+        if (q == 0 || q == 3) {
+            cell[2] = cX;
+        } else {
+            cell[0] = cX;
+        }
+        if (q == 0 || q == 1) {
+            cell[1] = cY;
+        } else {
+            cell[3] = cY;
+        }
+    }
+
+    /**
+     * Builds subtree from the run <code>[from, to)</code> of Morton-sorted points. Produces the same tree as
+     * {@link #populate(CoordinateMultiset)} without re-partitioning points on every level.
+     */
+    private void load(MortonOrder order, int from, int to, int depth, int sequentialCutoff) {
+        List<IGeoPoint> pts = Arrays.asList(order.points).subList(from, to);
+        count = to - from;
+
+        if (compressed && count > MAX_POINTS) {
+            // sorted points share a quadrant if the first and the last ones do
+            int[] cell = { boundBox.bLx, boundBox.bLy, boundBox.tRx, boundBox.tRy };
+            while (depth < MortonOrder.MAX_DEPTH && isSplittable(cell[0], cell[1], cell[2], cell[3])
+                    && order.digit(from, depth) == order.digit(to - 1, depth)) {
+                toQuadrant(cell, order.digit(from, depth));
+                depth++;
+                skipped++;
+            }
+            if (skipped > 0) {
+                splitBox = new GeoRect(cell[0], cell[1], cell[2], cell[3]);
+            }
+        }
+
+        if (count <= MAX_POINTS || depth >= MortonOrder.MAX_DEPTH
+                || !isSplittable(splitBox.bLx, splitBox.bLy, splitBox.tRx, splitBox.tRy)) {
+            points = new CoordinateMultiset(pts);
+            for (IGeoPoint p : points) {
+                avgX += p.getLng();
+                avgY += p.getLat();
+            }
+            return;
+        }
+
+        createChildren();
+
+        List<LoadTask> tasks = count > sequentialCutoff ? new ArrayList<LoadTask>(children.length) : null;
+        int childFrom = from;
+        for (int i = 0; i < children.length; i++) {
+            int childTo = i == children.length - 1 ? to : order.lowerBound(childFrom, to, depth, i + 1);
+            if (childFrom < childTo) {
+                QTNode child = getOrCreateChild(i);
+                if (tasks != null) {
+                    tasks.add(new LoadTask(child, order, childFrom, childTo, depth + 1, sequentialCutoff));
+                } else {
+                    child.load(order, childFrom, childTo, depth + 1, sequentialCutoff);
+                }
+            }
+            childFrom = childTo;
+        }
+        if (tasks != null) {
+            RecursiveAction.invokeAll(tasks);
+        }
+        for (QTNode child : children) {
+            if (child != null) {
+                avgX += child.avgX;
+                avgY += child.avgY;
+            }
+        }
+
+        points = null;
+    }
+
+    private static class LoadTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final QTNode node;
+        private final MortonOrder order;
+        private final int from, to, depth, sequentialCutoff;
+
+        LoadTask(QTNode node, MortonOrder order, int from, int to, int depth, int sequentialCutoff) {
+            this.node = node;
+            this.order = order;
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+            this.sequentialCutoff = sequentialCutoff;
+        }
+
+        @Override
+        protected void compute() {
+            node.load(order, from, to, depth, sequentialCutoff);
+        }
+    }
+
+    private void populate(CoordinateMultiset pts) {
+        points = pts;
+        for (int entry = 0; entry < points.entriesCount(); entry++) {
+            avgX += (long) points.getLng(entry) * points.getCount(entry);
+            avgY += (long) points.getLat(entry) * points.getCount(entry);
+        }
+        count = points.size();
+
+        if (points.size() > MAX_POINTS && isSplittable(splitBox.bLx, splitBox.bLy, splitBox.tRx, splitBox.tRy)) {
+            split();
+        }
+    }
+
+    /**
+     * @return whether node with given bounds is large enough to be split
+     */
+    static boolean isSplittable(int bLx, int bLy, int tRx, int tRy) {
+        int lngSpan = bLx > tRx ? 360000000 + tRx - bLx : tRx - bLx;
+        return tRy - bLy > MIN_COORD_SPAN || lngSpan > MIN_COORD_SPAN;
+    }
+
+    /**
+     * @return index of the child (in {@link #children} order) split at given centre, which holds given coordinates.
+     *         Quadrants are half-open: coordinates on a centre line belong to the northern or eastern child only, so
+     *         every point is routed to exactly one child.
+     */
+    static int quadrantOf(int lng, int lat, int cX, int cY) {
+        if (lat >= cY) {
+            return lng >= cX ? 1 : 0;
+        }
+        return lng >= cX ? 2 : 3;
+    }
+
+    /**
+     * Bounding box fitted to the data. A tree rooted at it skips the single-child chains a {@link #WHOLE_WORLD} root
+     * has above local data, but its cells are not aligned with the ones of other trees, and points outside the box
+     * can not be inserted later.
+     *
+     * @return smallest rect holding given points, {@link #WHOLE_WORLD} if there are none
+     */
+    public static GeoRect getBounds(Collection<? extends IGeoPoint> pts) {
+        if (pts.isEmpty()) {
+            return WHOLE_WORLD;
+        }
+        int l = Integer.MAX_VALUE, b = Integer.MAX_VALUE, r = Integer.MIN_VALUE, t = Integer.MIN_VALUE;
+        for (IGeoPoint p : pts) {
+            l = Math.min(l, p.getLng());
+            b = Math.min(b, p.getLat());
+            r = Math.max(r, p.getLng());
+            t = Math.max(t, p.getLat());
+        }
+        return new GeoRect(l, b, r, t);
+    }
+
+    /**
+     * Same as {@link #getBounds(Collection)}, snapped to a node cell of a {@link #WHOLE_WORLD} tree: the tree rooted
+     * at it has exactly the nodes of the corresponding subtree of a whole world tree, so tile and zoom math keep
+     * matching the world grid shifted by the depth of the cell.
+     *
+     * @return smallest cell of a whole world tree holding given points
+     */
+    public static GeoRect getAlignedBounds(Collection<? extends IGeoPoint> pts) {
+        GeoRect bounds = getBounds(pts);
+        int l = WHOLE_WORLD.bLx, b = WHOLE_WORLD.bLy, r = WHOLE_WORLD.tRx, t = WHOLE_WORLD.tRy;
+        while (isSplittable(l, b, r, t)) {
+            int cX = (r + l) / 2;
+            int cY = (t + b) / 2;
+            // routing is monotonic, so all points lie in one quadrant if both corners do
+            int q = quadrantOf(bounds.bLx, bounds.bLy, cX, cY);
+            if (q != quadrantOf(bounds.tRx, bounds.tRy, cX, cY)) {
+                break;
+            }
+            if (q == 0 || q == 3) {
+                r = cX;
+            } else {
+                l = cX;
+            }
+            if (q == 0 || q == 1) {
+                b = cY;
+            } else {
+                t = cY;
+            }
+        }
+        return new GeoRect(l, b, r, t);
+    }
+
+    private int getQuadrantIndex(IGeoPoint p) {
+        return getQuadrantIndex(p.getLng(), p.getLat());
+    }
+
+    private int getQuadrantIndex(int lng, int lat) {
+        return quadrantOf(lng, lat, (splitBox.tRx + splitBox.bLx) / 2, (splitBox.tRy + splitBox.bLy) / 2);
+    }
+
+    /**
+     * Exact k nearest neighbours search. Nodes are visited best-first by distance to their bounding boxes and skipped
+     * once they are farther than the k-th best point found so far.
+     * <p>
+     * Distance is euclidean in coordinate units, longitude difference is taken across 180 meridian when shorter,
+     * consistently with {@link GeoRect#contains(IGeoPoint)}.
+     * 
+     * @param k
+     *            number of points to find
+     * @param lat
+     *            latitude of point of interest
+     * @param lng
+     *            longitude of point of interest
+     * @return up to <code>k</code> points nearest to given location, closest first
+     */
+    @Override
+    public List<IGeoPoint> nearest(int k, int lat, int lng) {
+        return new NearestSearch<QTNode>(k, lat, lng) {
+            @Override
+            GeoRect getBounds(QTNode node) {
+                return node.boundBox;
+            }
+
+            @Override
+            QTNode[] getChildren(QTNode node) {
+                return node.children;
+            }
+
+            @Override
+            boolean isEmpty(QTNode node) {
+                return node.count == 0;
+            }
+
+            @Override
+            void visitLeaf(QTNode leaf) {
+                CoordinateMultiset pts = leaf.points;
+                for (int entry = 0; entry < pts.entriesCount(); entry++) {
+                    long d = distance(pts.getLng(entry), pts.getLat(entry), lng, lat);
+                    for (int i = 0; i < pts.getCount(entry) && offer(pts.getPoint(entry, i), d); i++) {
+                    }
+                }
+            }
+        }.search(this);
+    }
+
+    /**
+     * @return squared distance between given locations
+     */
+    static long distance(int lng1, int lat1, int lng2, int lat2) {
+        long dx = lngDistance(lng1, lng2);
+        long dy = lat1 - lat2;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * @return squared distance from given location to the nearest point of given rect
+     */
+    static long distanceTo(GeoRect rect, int lng, int lat) {
+        return distanceTo(rect.bLx, rect.bLy, rect.tRx, rect.tRy, lng, lat);
+    }
+
+    /**
+     * @return squared distance from given location to the nearest point of given rect
+     */
+    static long distanceTo(int bLx, int bLy, int tRx, int tRy, int lng, int lat) {
+        long dx = 0;
+        boolean containsLng = bLx > tRx ? bLx <= lng || lng <= tRx : bLx <= lng && lng <= tRx;
+        if (!containsLng) {
+            dx = Math.min(lngDistance(lng, bLx), lngDistance(lng, tRx));
+        }
+        long dy = 0;
+        if (lat < bLy) {
+            dy = bLy - lat;
+        } else if (lat > tRy) {
+            dy = lat - tRy;
+        }
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * @return longitude difference, across 180 meridian if shorter
+     */
+    private static long lngDistance(int lng1, int lng2) {
+        long dx = Math.abs((long) lng1 - lng2);
+        return Math.min(dx, 360000000 - dx);
+    }
+
+    @Override
+    public int count(GeoRect range) {
+        if (isEmpty() || !range.intersects(boundBox)) {
+            return 0;
+        }
+        if (range.contains(boundBox)) {
+            return count;
+        }
+
+        int res = 0;
+        if (children == null) {
+            for (int entry = 0; entry < points.entriesCount(); entry++) {
+                if (range.contains(points.getLng(entry), points.getLat(entry))) {
+                    res += points.getCount(entry);
+                }
+            }
+        } else {
+            for (QTNode child : children) {
+                if (child != null) {
+                    res += child.count(range);
+                }
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void aggregate(GeoRect range, IAggregateVisitor visitor) {
+        if (isEmpty() || !range.intersects(boundBox)) {
+            return;
+        }
+        if (range.contains(boundBox)) {
+            visitor.visitNode(count, avgX, avgY);
+            return;
+        }
+
+        if (children == null) {
+            for (int entry = 0; entry < points.entriesCount(); entry++) {
+                if (range.contains(points.getLng(entry), points.getLat(entry))) {
+                    for (int i = 0; i < points.getCount(entry); i++) {
+                        visitor.visitPoint(points.getPoint(entry, i));
+                    }
+                }
+            }
+        } else {
+            for (QTNode child : children) {
+                if (child != null) {
+                    child.aggregate(range, visitor);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Collection<IGeoPoint> getNearestPoints(int atLeast, IGeoPoint where) {
+        Collection<IGeoPoint> result = new ArrayList<IGeoPoint>(atLeast);
+        QTNode node = boundBox.contains(where) ? findNodeWithNPoints(atLeast, where) : null;
+        if (node != null) {
+            node.collectPoints(result);
+        }
+        return result;
+    }
+
+    private void collectEntries(CoordinateMultiset out) {
+        if (children == null) {
+            out.addAll(points);
+        } else {
+            for (QTNode child : children) {
+                if (child != null) {
+                    child.collectEntries(out);
+                }
+            }
+        }
+    }
+
+    private void collectPoints(Collection<IGeoPoint> out) {
+        if (points != null) {
+            out.addAll(points);
+        }
+        if (children != null) {
+            for (QTNode child : children) {
+                if (child != null) {
+                    child.collectPoints(out);
+                }
+            }
+        }
+    }
+
+    private QTNode findNodeWithNPoints(int count, IGeoPoint point) {
+        if (skipped > 0 && !isOnChain(point.getLng(), point.getLat())) {
+            // the deepest chain cell holding the point has all points of this node
+            return this;
+        }
+        QTNode res = children == null ? null : children[getQuadrantIndex(point)];
+        if (skipped > 0 && (res == null || res.count < count)) {
+            // the deepest chain cell holding the point is the deepest node with enough points
+            return this;
+        }
+        if (res == null) {
+            return null;
+        }
+        if (res.count > count) {
+            QTNode subRes = res.findNodeWithNPoints(count, point);
+            if (subRes != null && subRes.count >= count) {
+                res = subRes;
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public Collection<? extends IGeoPoint> query(GeoRect range) {
+        List<IGeoPoint> res = new ArrayList<IGeoPoint>();
+        query(range, new QueryContext(), collectTo(res));
+        return res;
+    }
+
+    private static IClusterVisitor collectTo(final Collection<IGeoPoint> res) {
+        return new IClusterVisitor() {
+            @Override
+            public void visitPoint(IGeoPoint p) {
+                res.add(p);
+            }
+
+            @Override
+            public void visitCluster(GeoCluster cluster) {
+                res.add(cluster);
+            }
+        };
+    }
+
+    /**
+     * Same as {@link #query(GeoRect)}, but passes found points and clusters to the visitor instead of collecting
+     * them. Allocates nothing once the context buffers have grown to the size of the query.
+     * 
+     * @param range
+     *            visible area
+     * @param context
+     *            traversal state, can be reused by subsequent queries of the same thread
+     * @param visitor
+     *            receiver of the query results
+     */
+    public void query(GeoRect range, QueryContext context, IClusterVisitor visitor) {
+        context.reset(this, 0, range.contains(boundBox));
+
+        while (context.levelSize > 0 && !Thread.currentThread().isInterrupted()) {
+            QTNode node = null;
+            int offset = 0;
+            for (int i = 0; i < context.levelSize; i++) {
+                node = context.level[i];
+                offset = context.levelOffset[i];
+
+                if (node.children == null && offset == node.skipped) {
+                    context.addToResult(node, offset, context.levelContained[i]);
+                } else {
+                    node.addChildren(range, offset, context.levelContained[i], context);
+                }
+            }
+
+            if (node.isLargerThan(range, offset, context.cell)) {
+                context.descend();
+            } else {
+                context.stop();
+            }
+        }
+
+        for (int i = 0; i < context.resultSize; i++) {
+            context.result[i].visitSuccessors(range, context.resultOffset[i], context.resultContained[i],
+                    context.cell, visitor);
+        }
+    }
+
+    /**
+     * @return whether the cell given number of levels down the compressed chain spans more than given range in both
+     *         dimensions
+     */
+    private boolean isLargerThan(GeoRect range, int offset, int[] cell) {
+        if (offset == 0) {
+            return range.getLngSpan() < boundBox.getLngSpan() && range.getLatSpan() < boundBox.getLatSpan();
+        }
+        getChainCell(offset, cell);
+        return range.getLngSpan() < cell[2] - cell[0] && range.getLatSpan() < cell[3] - cell[1];
+    }
+
+    /**
+     * Buffers children intersecting given range along with their classification. Children of a node lying
+     * entirely within the range are not tested at all. Within a compressed chain the only non-empty child is this
+     * node one level further down the chain.
+     */
+    private void addChildren(GeoRect range, int offset, boolean contained, QueryContext context) {
+        if (offset < skipped) {
+            if (contained) {
+                context.addToBuffer(this, offset + 1, true);
+            } else {
+                int[] cell = context.cell;
+                getChainCell(offset + 1, cell);
+                if (range.intersects(cell[0], cell[1], cell[2], cell[3])) {
+                    context.addToBuffer(this, offset + 1, range.contains(cell[0], cell[1], cell[2], cell[3]));
+                }
+            }
+            return;
+        }
+        for (QTNode child : children) {
+            if (child == null) {
+                continue;
+            }
+            if (contained) {
+                context.addToBuffer(child, 0, true);
+            } else if (range.intersects(child.boundBox)) {
+                context.addToBuffer(child, 0, range.contains(child.boundBox));
+            }
+        }
+    }
+
+    /**
+     * Clusters points within given range on a fixed zoom level. Unlike {@link #query(GeoRect)} granularity does not
+     * depend on the range shape: nodes <code>zoom</code> levels below this one are reported as clusters, shallower
+     * leaves as their points. So the result size is bounded by the number of zoom level cells intersecting the range
+     * times maximum number of points in a leaf.
+     * 
+     * @param range
+     *            visible area
+     * @param zoom
+     *            depth of reported clusters, 0 stands for this node
+     * @return points and {@link GeoCluster}s within given range
+     */
+    public Collection<? extends IGeoPoint> query(GeoRect range, int zoom) {
+        List<IGeoPoint> res = new ArrayList<IGeoPoint>();
+        query(range, zoom, new QueryContext(), collectTo(res));
+        return res;
+    }
+
+    /**
+     * Same as {@link #query(GeoRect, int)} with zoom level chosen by {@link #getZoom(GeoRect, int, int, int)} for
+     * clusters about {@link #DEFAULT_CLUSTER_CELL_PX} pixels in size.
+     * 
+     * @param range
+     *            visible area
+     * @param widthPx
+     *            viewport width in pixels
+     * @param heightPx
+     *            viewport height in pixels
+     * @return points and {@link GeoCluster}s within given range
+     */
+    public Collection<? extends IGeoPoint> query(GeoRect range, int widthPx, int heightPx) {
+        return query(range, getZoom(range, widthPx, heightPx, DEFAULT_CLUSTER_CELL_PX));
+    }
+
+    /**
+     * Same as {@link #query(GeoRect, int)}, but passes found points and clusters to the visitor
+     * 
+     * @param range
+     *            visible area
+     * @param zoom
+     *            depth of reported clusters, 0 stands for this node
+     * @param context
+     *            traversal state, can be reused by subsequent queries of the same thread
+     * @param visitor
+     *            receiver of the query results
+     */
+    public void query(GeoRect range, int zoom, QueryContext context, IClusterVisitor visitor) {
+        if (isEmpty() || !range.intersects(boundBox)) {
+            return;
+        }
+        context.reset(this, 0, range.contains(boundBox));
+        visitLevels(range, zoom, context, visitor);
+    }
+
+    /**
+     * Same as {@link #query(GeoRect, int, QueryContext, IClusterVisitor)} for the whole cell with given path ID
+     * below this node (see {@link GeoCluster#getId()}). Unlike a range query on the cell bounds it reports nothing
+     * of the neighbouring cells touching its border: points of a leaf larger than the cell are reported only if they
+     * are routed into the cell.
+     *
+     * @param zoom
+     *            depth of reported clusters below the cell
+     */
+    void queryCell(long cellId, int zoom, QueryContext context, IClusterVisitor visitor) {
+        int cellDepth = getPathDepth(cellId) - getPathDepth(id);
+        QTNode node = this;
+        int offset = 0;
+        for (int level = 0; level < cellDepth; level++) {
+            int q = (int) (cellId >>> 2 * (cellDepth - 1 - level)) & 3;
+            if (offset < node.skipped) {
+                // the only non-empty quadrant within a compressed chain is the next cell of the chain
+                if ((node.getId(offset + 1) & 3) != q) {
+                    return;
+                }
+                offset++;
+            } else if (node.children == null) {
+                node.points.visit(node.splitBox, node.getId(offset), cellId, visitor);
+                return;
+            } else if (node.children[q] == null) {
+                return;
+            } else {
+                node = node.children[q];
+                offset = 0;
+            }
+        }
+        if (node.isEmpty()) {
+            return;
+        }
+
+        // the whole cell is reported, so entries are contained and the range is never tested
+        context.reset(node, offset, true);
+        visitLevels(null, zoom, context, visitor);
+    }
+
+    /**
+     * Traverses nodes from the current level of given context, reporting the ones <code>zoom</code> levels below it
+     * as clusters and shallower leaves as their points
+     */
+    private static void visitLevels(GeoRect range, int zoom, QueryContext context, IClusterVisitor visitor) {
+        for (int depth = 0; context.levelSize > 0 && !Thread.currentThread().isInterrupted(); depth++) {
+            for (int i = 0; i < context.levelSize; i++) {
+                QTNode node = context.level[i];
+                int offset = context.levelOffset[i];
+
+                if (node.children == null && offset == node.skipped || depth >= zoom) {
+                    context.addToResult(node, offset, context.levelContained[i]);
+                } else {
+                    node.addChildren(range, offset, context.levelContained[i], context);
+                }
+            }
+            context.descend();
+        }
+
+        for (int i = 0; i < context.resultSize; i++) {
+            context.result[i].visitSelf(range, context.resultOffset[i], context.resultContained[i], visitor);
+        }
+    }
+
+    /**
+     * @param range
+     *            visible area
+     * @param widthPx
+     *            viewport width in pixels
+     * @param heightPx
+     *            viewport height in pixels
+     * @param cellPx
+     *            desired cluster cell size in pixels
+     * @return smallest zoom level, whose cells are not larger than <code>cellPx</code> pixels on the viewport
+     */
+    public int getZoom(GeoRect range, int widthPx, int heightPx, int cellPx) {
+        double lngCells = (double) widthPx / cellPx * boundBox.getLngSpan() / Math.max(range.getLngSpan(), 1);
+        double latCells = (double) heightPx / cellPx * boundBox.getLatSpan() / Math.max(range.getLatSpan(), 1);
+        double cells = Math.max(lngCells, latCells);
+        if (cells <= 1) {
+            return 0;
+        }
+        return Math.min((int) Math.ceil(Math.log(cells) / Math.log(2)), MortonOrder.MAX_DEPTH);
+    }
+
+    /**
+     * Passes this node to the visitor as a cluster, or as its points within given range if it is a leaf
+     * 
+     * @param contained
+     *            whether this node lies entirely within the range
+     */
+    private void visitSelf(GeoRect range, int offset, boolean contained, IClusterVisitor visitor) {
+        if (children == null && offset == skipped) {
+            visitPoints(range, contained, visitor);
+        } else {
+            visitor.visitCluster(getCluster(offset));
+        }
+    }
+
+    /**
+     * Passes successors (points or clusters) within given bounding box to the visitor
+     * 
+     * @param offset
+     *            level of the compressed chain this node stands for
+     * @param contained
+     *            whether this node lies entirely within the range
+     * @param cell
+     *            scratch bounds of a chain cell
+     */
+    private void visitSuccessors(GeoRect rect, int offset, boolean contained, int[] cell, IClusterVisitor visitor) {
+        if (offset < skipped) {
+            // the next cell of the chain holds all points of this node
+            if (!contained) {
+                getChainCell(offset + 1, cell);
+            }
+            if (contained || rect.intersects(cell[0], cell[1], cell[2], cell[3])) {
+                visitor.visitCluster(getCluster(offset + 1));
+            }
+        } else if (children != null) {
+            for (QTNode cluster : children) {
+                if (cluster == null) {
+                    continue;
+                }
+                if (cluster.count == 1) {
+                    cluster.visitPoints(rect, contained, visitor);
+                } else if (contained || rect.intersects(cluster.boundBox)) {
+                    visitor.visitCluster(cluster.getCluster(0));
+                }
+            }
+        } else {
+            visitPoints(rect, contained, visitor);
+        }
+    }
+
+    /**
+     * Passes points of this leaf to the visitor, co-located ones as a single weighted cluster. Points are tested
+     * against the range only if the leaf crosses its border.
+     */
+    private void visitPoints(GeoRect range, boolean contained, IClusterVisitor visitor) {
+        long leafId = getId(skipped);
+        if (contained) {
+            points.visit(splitBox, leafId, visitor);
+        } else {
+            points.visit(splitBox, leafId, range, visitor);
+        }
+    }
+
+    /**
+     * Compiles current state of this tree into an immutable {@link FlatQuadTree} of the same shape. Nodes and points
+     * are laid out depth-first in primitive arrays, so the snapshot is compact, traversed without pointer chasing and
+     * can be shared between reader threads while this tree keeps being modified by its owner.
+     * 
+     * @return read-only snapshot answering queries identically to this tree
+     */
+    public FlatQuadTree freeze() {
+        FlatQuadTree.Layout layout = new FlatQuadTree.Layout(new ArrayList<IGeoPoint>(count));
+        freeze(layout, layout.newNodes(1));
+        return new FlatQuadTree(layout);
+    }
+
+    private void freeze(FlatQuadTree.Layout layout, int node) {
+        freeze(layout, node, 0, boundBox);
+    }
+
+    /**
+     * Lays out this node standing for given level of its compressed chain. Skipped levels are restored along with
+     * their empty siblings, so the snapshot has the shape of an uncompressed tree.
+     */
+    private void freeze(FlatQuadTree.Layout layout, int node, int offset, GeoRect cell) {
+        int start = layout.items.size();
+        if (offset < skipped) {
+            int q = quadrantOf((splitBox.tRx + splitBox.bLx) / 2, (splitBox.tRy + splitBox.bLy) / 2,
+                    (cell.tRx + cell.bLx) / 2, (cell.tRy + cell.bLy) / 2);
+            int first = layout.newNodes(DEFAULT_CHILDREN_COUNT);
+            for (int i = 0; i < DEFAULT_CHILDREN_COUNT; i++) {
+                if (i != q) {
+                    layout.setNode(first + i, getQuadrantBox(cell, i), -1, layout.items.size(), layout.items.size());
+                } else if (offset + 1 == skipped) {
+                    freeze(layout, first + i, offset + 1, splitBox);
+                } else {
+                    freeze(layout, first + i, offset + 1, getQuadrantBox(cell, i));
+                }
+            }
+            layout.setNode(node, cell, first, start, layout.items.size());
+            return;
+        }
+
+        if (children == null) {
+            layout.items.addAll(points);
+            layout.setNode(node, cell, -1, start, layout.items.size());
+            return;
+        }
+
+        int first = layout.newNodes(children.length);
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] != null) {
+                children[i].freeze(layout, first + i);
+            } else {
+                layout.setNode(first + i, getQuadrantBox(cell, i), -1, layout.items.size(), layout.items.size());
+            }
+        }
+        layout.setNode(node, cell, first, start, layout.items.size());
+    }
+
+    public GeoRect getBoundBox() {
+        return boundBox;
+    }
+
+    /**
+     * @return depth of the leaf holding given coordinates, 0 stands for this node
+     */
+    int getLeafDepth(int lng, int lat) {
+        QTNode node = this;
+        int depth = 0;
+        while (true) {
+            if (node.skipped > 0) {
+                if (!node.isOnChain(lng, lat)) {
+                    // an empty sibling of the chain
+                    return depth + node.descendChain(lng, lat, node.skipped, new int[4]) + 1;
+                }
+                depth += node.skipped;
+            }
+            if (node.children == null) {
+                return depth;
+            }
+            node = node.children[node.getQuadrantIndex(lng, lat)];
+            depth++;
+            if (node == null) {
+                // quadrant without points
+                return depth;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return children == null && points.isEmpty();
+    }
+
+    /**
+     * @param offset
+     *            level of the compressed chain the cluster stands for
+     * @return cluster representation of current node. It is computed from the running sums when the node is first
+     *         reported after a change, so updates do not pay for centroids nobody reads.
+     */
+    private GeoCluster getCluster(int offset) {
+        if (offset == 0) {
+            if (cluster == null || cluster.getId() != id) {
+                cluster = newCluster(id);
+            }
+            return cluster;
+        }
+
+        if (chainClusters == null || chainClusters.length != skipped) {
+            chainClusters = new GeoCluster[skipped];
+        }
+        long clusterId = getId(offset);
+        GeoCluster res = chainClusters[offset - 1];
+        if (res == null || res.getId() != clusterId) {
+            res = newCluster(clusterId);
+            chainClusters[offset - 1] = res;
+        }
+        return res;
+    }
+
+    private GeoCluster newCluster(long clusterId) {
+        return new GeoCluster(clusterId, (int) (avgX / count), (int) (avgY / count), count, new SubtreePoints(this));
+    }
+
+    /**
+     * Drops the clusters of this node after a change of it or its subtree
+     */
+    private void invalidateCluster() {
+        cluster = null;
+        if (chainClusters != null) {
+            Arrays.fill(chainClusters, null);
+        }
+        modCount++;
+    }
+
+    /**
+     * Points of a node as of the moment its cluster was reported, walked depth-first on demand. Every change of a
+     * subtree passes through its root, and a root absorbed by a compressed chain is marked changed, so iteration fails
+     * fast once the node has been changed since.
+     */
+    private static final class SubtreePoints extends SubtreeMembers<QTNode> {
+        private final int size;
+        private final int expectedModCount;
+
+        SubtreePoints(QTNode node) {
+            super(node);
+            this.size = node.count;
+            this.expectedModCount = node.modCount;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        QTNode[] getChildren(QTNode node) {
+            return node.children;
+        }
+
+        @Override
+        int getCount(QTNode node) {
+            return node.count;
+        }
+
+        @Override
+        Iterator<IGeoPoint> getPoints(QTNode leaf, int offset) {
+            return leaf.points.iterator(offset);
+        }
+
+        @Override
+        void checkForModification() {
+            if (root.modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Node[\n\tbBox: ").append(boundBox).append("\n\t");
+
+        if (children != null) {
+            sb.append("Children:\n");
+            for (QTNode child : children) {
+                if (child != null) {
+                    sb.append(child).append('\n');
+                }
             }
         } else {
             sb.append("Points:\n");
@@ -0,0 +1,97 @@
+package com.quadtree.clustering;
+
+import java.util.Arrays;
+
+/**
+ * Reusable traversal state of {@link QTNode} range queries. Keeping a context per thread makes a steady-state query
+ * allocation-free, as its buffers only grow up to the largest query seen.
+ * <p>
+ * Every node is kept along with a flag telling whether it lies entirely within the range, so neither its descendants
+ * nor its points are tested against the range again. Nodes of a compressed tree are also kept with the level of their
+ * skipped chain they currently stand for.
+ * <p>
+ * Not thread-safe, a context must not be shared by concurrent queries.
+ *
+ */
+public class QueryContext {
+    private static final int INITIAL_CAPACITY = 16;
+
+    QTNode[] level = new QTNode[INITIAL_CAPACITY];
+    int[] levelOffset = new int[INITIAL_CAPACITY];
+    boolean[] levelContained = new boolean[INITIAL_CAPACITY];
+    int levelSize;
+
+    QTNode[] buffer = new QTNode[INITIAL_CAPACITY];
+    int[] bufferOffset = new int[INITIAL_CAPACITY];
+    boolean[] bufferContained = new boolean[INITIAL_CAPACITY];
+    int bufferSize;
+
+    QTNode[] result = new QTNode[INITIAL_CAPACITY];
+    int[] resultOffset = new int[INITIAL_CAPACITY];
+    boolean[] resultContained = new boolean[INITIAL_CAPACITY];
+    int resultSize;
+
+    /**
+     * Scratch bounds <code>{bLx, bLy, tRx, tRy}</code> of a cell within a compressed chain
+     */
+    final int[] cell = new int[4];
+
+    void reset(QTNode root, int offset, boolean contained) {
+        level[0] = root;
+        levelOffset[0] = offset;
+        levelContained[0] = contained;
+        levelSize = 1;
+        bufferSize = 0;
+        resultSize = 0;
+    }
+
+    void addToBuffer(QTNode node, int offset, boolean contained) {
+        if (bufferSize == buffer.length) {
+            buffer = Arrays.copyOf(buffer, bufferSize * 2);
+            bufferOffset = Arrays.copyOf(bufferOffset, bufferSize * 2);
+            bufferContained = Arrays.copyOf(bufferContained, bufferSize * 2);
+        }
+        buffer[bufferSize] = node;
+        bufferOffset[bufferSize] = offset;
+        bufferContained[bufferSize++] = contained;
+    }
+
+    void addToResult(QTNode node, int offset, boolean contained) {
+        if (resultSize == result.length) {
+            result = Arrays.copyOf(result, resultSize * 2);
+            resultOffset = Arrays.copyOf(resultOffset, resultSize * 2);
+            resultContained = Arrays.copyOf(resultContained, resultSize * 2);
+        }
+        result[resultSize] = node;
+        resultOffset[resultSize] = offset;
+        resultContained[resultSize++] = contained;
+    }
+
+    /**
+     * Makes buffered nodes the next level to traverse
+     */
+    void descend() {
+        QTNode[] tmp = level;
+        level = buffer;
+        buffer = tmp;
+        int[] tmpOffset = levelOffset;
+        levelOffset = bufferOffset;
+        bufferOffset = tmpOffset;
+        boolean[] tmpContained = levelContained;
+        levelContained = bufferContained;
+        bufferContained = tmpContained;
+        levelSize = bufferSize;
+        bufferSize = 0;
+    }
+
+    /**
+     * Moves buffered nodes to the result and stops traversal
+     */
+    void stop() {
+        for (int i = 0; i < bufferSize; i++) {
+            addToResult(buffer[i], bufferOffset[i], bufferContained[i]);
+        }
+        bufferSize = 0;
+        levelSize = 0;
+    }
+}
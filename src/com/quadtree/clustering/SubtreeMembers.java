@@ -0,0 +1,111 @@
+package com.quadtree.clustering;
+
+import java.util.*;
+
+/**
+ * Points of a pointer-based quad-tree subtree, walked depth-first on demand. A positioned iteration descends straight
+ * to the leaf holding the point at the offset, skipping the children before it by their counts.
+ *
+ * @param <N>
+ *            node type of the tree
+ */
+abstract class SubtreeMembers<N> extends ClusterMembers {
+    final N root;
+
+    SubtreeMembers(N root) {
+        this.root = root;
+    }
+
+    /**
+     * @return children of given node, <code>null</code> for a leaf. Missing children are skipped.
+     */
+    abstract N[] getChildren(N node);
+
+    /**
+     * @return number of points in the subtree of given node
+     */
+    abstract int getCount(N node);
+
+    /**
+     * @return iterator over the points of given leaf starting at given position
+     */
+    abstract Iterator<IGeoPoint> getPoints(N leaf, int offset);
+
+    /**
+     * Fails iteration if the subtree is no longer the one the members were taken from
+     *
+     * @throws ConcurrentModificationException
+     *             if the subtree has been changed
+     */
+    void checkForModification() {
+    }
+
+    @Override
+    Iterator<IGeoPoint> iterator(int offset) {
+        checkForModification();
+
+        final Deque<N> pending = new ArrayDeque<N>();
+        Iterator<IGeoPoint> first = Collections.<IGeoPoint> emptyList().iterator();
+        if (offset < getCount(root)) {
+            // descend to the leaf holding the point at the offset, subtrees after the path are left pending
+            N current = root;
+            N[] children;
+            while ((children = getChildren(current)) != null) {
+                int q = 0;
+                while (children[q] == null || offset >= getCount(children[q])) {
+                    if (children[q] != null) {
+                        offset -= getCount(children[q]);
+                    }
+                    q++;
+                }
+                pushChildren(pending, children, q + 1);
+                current = children[q];
+            }
+            first = getPoints(current, offset);
+        }
+        final Iterator<IGeoPoint> firstLeaf = first;
+
+        return new Iterator<IGeoPoint>() {
+            private Iterator<IGeoPoint> leaf = firstLeaf;
+
+            @Override
+            public boolean hasNext() {
+                checkForModification();
+                while (!leaf.hasNext() && !pending.isEmpty()) {
+                    N next = pending.pop();
+                    N[] children = getChildren(next);
+                    if (children == null) {
+                        leaf = getPoints(next, 0);
+                    } else {
+                        pushChildren(pending, children, 0);
+                    }
+                }
+                return leaf.hasNext();
+            }
+
+            @Override
+            public IGeoPoint next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return leaf.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Pushes children from given index on, so that they are popped in order
+     */
+    private static <N> void pushChildren(Deque<N> pending, N[] children, int from) {
+        for (int i = children.length - 1; i >= from; i--) {
+            if (children[i] != null) {
+                pending.push(children[i]);
+            }
+        }
+    }
+}
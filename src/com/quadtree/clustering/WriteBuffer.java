@@ -0,0 +1,235 @@
+package com.quadtree.clustering;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind front end of a {@link QTNode}. Inserts, removals and moves are accumulated and applied to the tree in
+ * batches, each batch in one top-down pass grouping points by quadrant on every level.
+ * <p>
+ * Updates of the same point (as defined by {@link Object#equals(Object)}) are coalesced, only their net effect reaches
+ * the tree: e.g. a point inserted and moved several times before a flush is inserted once at its last location. Points
+ * are treated as a set, a pending insert of a point not yet in the tree is cancelled by its removal.
+ * <p>
+ * Coordinates are taken from points when they are passed to the buffer, so a point may be updated by the caller right
+ * after {@link #move(IGeoPoint, int, int)} returns, as {@link QTNode#move(IGeoPoint, int, int)} requires.
+ * <p>
+ * Pending updates are flushed when there are <code>maxPending</code> of them, or on the first update after
+ * <code>maxDelay</code> since the oldest pending one. Call {@link #flushIfDue()} periodically to bound the delay
+ * without further updates. The tree is modified under this buffer's monitor, readers sharing the tree with the
+ * flushing thread synchronize on the buffer; a batch size limit bounds the time they wait.
+ *
+ */
+public class WriteBuffer {
+    public static final int DEFAULT_MAX_PENDING = 1024;
+
+    private final QTNode tree;
+    private final int maxPending;
+    private final long maxDelayNanos;
+
+    private final Map<IGeoPoint, Update> pending = new LinkedHashMap<IGeoPoint, Update>();
+    private long oldestPendingNanos;
+
+    /**
+     * Net effect of the pending updates of a point: removal from the old location followed by insertion at the new
+     * one, either may be absent
+     */
+    private static class Update {
+        final IGeoPoint point;
+
+        boolean remove;
+        int oldLng, oldLat;
+
+        boolean insert;
+        int newLng, newLat;
+        /**
+         * Insertion is done only if the point was found at the old location
+         */
+        boolean moveOnly;
+
+        Update(IGeoPoint point) {
+            this.point = point;
+        }
+    }
+
+    /**
+     * Buffer flushing every {@link #DEFAULT_MAX_PENDING} updates, without time limit
+     *
+     * @param tree
+     *            tree to update
+     */
+    public WriteBuffer(QTNode tree) {
+        this(tree, DEFAULT_MAX_PENDING, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param tree
+     *            tree to update
+     * @param maxPending
+     *            number of coalesced pending updates flushed at once
+     * @param maxDelay
+     *            maximum age of a pending update
+     * @param unit
+     *            time unit of <code>maxDelay</code>
+     */
+    public WriteBuffer(QTNode tree, int maxPending, long maxDelay, TimeUnit unit) {
+        if (maxPending <= 0) {
+            throw new IllegalArgumentException("Illegal max pending updates: " + maxPending);
+        }
+        this.tree = tree;
+        this.maxPending = maxPending;
+        maxDelayNanos = unit.toNanos(maxDelay);
+    }
+
+    /**
+     * @see QTNode#insert(IGeoPoint)
+     */
+    public synchronized void insert(IGeoPoint p) {
+        if (!tree.getBoundBox().contains(p)) {
+            throw new IllegalArgumentException("Bounding box " + tree.getBoundBox() + " does not containt point: "
+                    + p);
+        }
+
+        Update update = getUpdate(p);
+        update.insert = true;
+        update.newLng = p.getLng();
+        update.newLat = p.getLat();
+        update.moveOnly = false;
+        updated();
+    }
+
+    /**
+     * @see QTNode#remove(IGeoPoint)
+     */
+    public synchronized void remove(IGeoPoint p) {
+        Update update = pending.get(p);
+        if (update != null && !update.remove) {
+            // point is not in the tree yet
+            pending.remove(p);
+            return;
+        }
+
+        if (update == null) {
+            update = getUpdate(p);
+            update.remove = true;
+            update.oldLng = p.getLng();
+            update.oldLat = p.getLat();
+        }
+        update.insert = false;
+        updated();
+    }
+
+    /**
+     * @see QTNode#move(IGeoPoint, int, int)
+     */
+    public synchronized void move(IGeoPoint p, int newLat, int newLng) {
+        if (!tree.getBoundBox().contains(newLng, newLat)) {
+            throw new IllegalArgumentException("Bounding box " + tree.getBoundBox() + " does not containt point: ("
+                    + newLng + "," + newLat + ")");
+        }
+
+        Update update = pending.get(p);
+        if (update == null) {
+            update = getUpdate(p);
+            update.remove = true;
+            update.oldLng = p.getLng();
+            update.oldLat = p.getLat();
+            update.insert = true;
+            update.moveOnly = true;
+        } else if (!update.insert) {
+            // moving a removed point changes nothing
+            return;
+        }
+        update.newLng = newLng;
+        update.newLat = newLat;
+        updated();
+    }
+
+    private Update getUpdate(IGeoPoint p) {
+        Update update = pending.get(p);
+        if (update == null) {
+            if (pending.isEmpty()) {
+                oldestPendingNanos = System.nanoTime();
+            }
+            update = new Update(p);
+            pending.put(p, update);
+        }
+        return update;
+    }
+
+    private void updated() {
+        if (pending.size() >= maxPending) {
+            flush();
+        } else {
+            flushIfDue();
+        }
+    }
+
+    /**
+     * Flushes pending updates if the oldest of them is older than the maximum delay
+     *
+     * @return whether updates were flushed
+     */
+    public synchronized boolean flushIfDue() {
+        if (pending.isEmpty() || System.nanoTime() - oldestPendingNanos < maxDelayNanos) {
+            return false;
+        }
+        flush();
+        return true;
+    }
+
+    /**
+     * Applies all pending updates to the tree
+     */
+    public synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        int n = pending.size();
+        IGeoPoint[] pts = new IGeoPoint[n];
+        int[] lngs = new int[n];
+        int[] lats = new int[n];
+        Update[] removals = new Update[n];
+        int removalsCount = 0;
+        for (Update update : pending.values()) {
+            if (update.remove) {
+                pts[removalsCount] = update.point;
+                lngs[removalsCount] = update.oldLng;
+                lats[removalsCount] = update.oldLat;
+                removals[removalsCount++] = update;
+            }
+        }
+
+        boolean[] removed = tree.removeBatch(pts, lngs, lats, removalsCount);
+        for (int i = 0; i < removalsCount; i++) {
+            if (!removed[i] && removals[i].moveOnly) {
+                removals[i].insert = false;
+            }
+        }
+
+        int insertionsCount = 0;
+        for (Update update : pending.values()) {
+            if (update.insert) {
+                pts[insertionsCount] = update.point;
+                lngs[insertionsCount] = update.newLng;
+                lats[insertionsCount] = update.newLat;
+                insertionsCount++;
+            }
+        }
+        tree.insertBatch(pts, lngs, lats, insertionsCount);
+
+        pending.clear();
+    }
+
+    /**
+     * @return number of points with pending updates
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public QTNode getTree() {
+        return tree;
+    }
+}